@@ -45,6 +45,34 @@ public abstract class AbstractCellposeSettings
 
 	public final boolean simplifyContours;
 
+	/**
+	 * How to simplify the contours, if {@link #simplifyContours} is
+	 * <code>true</code>.
+	 */
+	public final SimplificationMethod simplificationMethod;
+
+	/**
+	 * The contour simplification tolerance, in pixels, or 0 for the default
+	 * of one pixel.
+	 */
+	public final double simplificationTolerance;
+
+	/**
+	 * The maximal number of vertices of the simplified contours, or 0 for no
+	 * limit.
+	 */
+	public final int maxVertices;
+
+	/**
+	 * The minimal area of the objects to keep, in pixels, or 0 for no limit.
+	 */
+	public final double minArea;
+
+	/**
+	 * The maximal area of the objects to keep, in pixels, or 0 for no limit.
+	 */
+	public final double maxArea;
+
 	private final PretrainedModel model;
 
 	protected AbstractCellposeSettings(
@@ -56,6 +84,25 @@ public abstract class AbstractCellposeSettings
 			final double diameter,
 			final boolean useGPU,
 			final boolean simplifyContours )
+	{
+		this( executablePath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				SimplificationMethod.DOUGLAS_PEUCKER, 0., 0, 0., 0. );
+	}
+
+	protected AbstractCellposeSettings(
+			final String executablePath,
+			final PretrainedModel model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final SimplificationMethod simplificationMethod,
+			final double simplificationTolerance,
+			final int maxVertices,
+			final double minArea,
+			final double maxArea )
 	{
 		this.executablePath = executablePath;
 		this.model = model;
@@ -65,6 +112,11 @@ public abstract class AbstractCellposeSettings
 		this.diameter = diameter;
 		this.useGPU = useGPU;
 		this.simplifyContours = simplifyContours;
+		this.simplificationMethod = simplificationMethod;
+		this.simplificationTolerance = simplificationTolerance;
+		this.maxVertices = maxVertices;
+		this.minArea = minArea;
+		this.maxArea = maxArea;
 	}
 
 	/**
@@ -75,18 +127,82 @@ public abstract class AbstractCellposeSettings
 	 */
 	public abstract String getExecutableName();
 
+	/**
+	 * Returns the name of the pretrained model, or the path to the custom model
+	 * file if a custom model is used.
+	 * 
+	 * @return the model name or path.
+	 */
+	public String getModelPath()
+	{
+		return model.isCustom() ? customModelPath : model.getPath();
+	}
+
+	/**
+	 * Returns <code>true</code> if the executable path points to a Python
+	 * interpreter, and <code>false</code> if it points to a standalone cellpose
+	 * or omnipose executable. We check the last part of the path to decide.
+	 * 
+	 * @return whether cellpose is called from Python.
+	 */
+	public boolean isPythonExecutable()
+	{
+		final String[] split = executablePath.replace( "\\", "/" ).split( "/" );
+		final String lastItem = split[ split.length - 1 ];
+		return lastItem.toLowerCase().startsWith( "python" );
+	}
+
+	/**
+	 * Returns the 0-based indices of the channels cellpose reads in an image
+	 * with the specified number of channels. With <code>chan = 0</code>,
+	 * cellpose averages all the channels, so they are all needed.
+	 * 
+	 * @param nChannels
+	 *            the number of channels in the image.
+	 * @return the sorted indices of the channels used, or <code>null</code> if
+	 *         all the channels are needed.
+	 */
+	public int[] getUsedChannels( final int nChannels )
+	{
+		if ( chan <= 0 || chan > nChannels || chan2 > nChannels )
+			return null;
+		if ( chan2 <= 0 || chan2 == chan )
+			return new int[] { chan - 1 };
+		return new int[] { Math.min( chan, chan2 ) - 1, Math.max( chan, chan2 ) - 1 };
+	}
+
 	public List< String > toCmdLine( final String imagesDir )
+	{
+		return toCmdLine( imagesDir, chan, chan2, MaskFormat.PNG );
+	}
+
+	/**
+	 * Returns the command line to run cellpose on an image folder, with the
+	 * specified channels instead of the ones of these settings, and the
+	 * specified mask format. The channels are changed when the images only
+	 * contain a subset of the source channels, see
+	 * {@link #getUsedChannels(int)}.
+	 * 
+	 * @param imagesDir
+	 *            the image folder.
+	 * @param chan
+	 *            the channel to segment, 1-based, or 0 for grayscale.
+	 * @param chan2
+	 *            the optional nuclear channel, 1-based, 0 for none, or -1 to
+	 *            omit the argument.
+	 * @param maskFormat
+	 *            the format in which to save the masks.
+	 * @return the command line.
+	 */
+	public List< String > toCmdLine( final String imagesDir, final int chan, final int chan2, final MaskFormat maskFormat )
 	{
 		final List< String > cmd = new ArrayList<>();
 
 		/*
 		 * First decide whether we are calling Cellpose from python, or directly
-		 * the Cellpose executable. We check the last part of the path to check
-		 * whether this is python or cellpose.
+		 * the Cellpose executable.
 		 */
-		final String[] split = executablePath.replace( "\\", "/" ).split( "/" );
-		final String lastItem = split[ split.length - 1 ];
-		if ( lastItem.toLowerCase().startsWith( "python" ) )
+		if ( isPythonExecutable() )
 		{
 			// Calling Cellpose from python.
 			cmd.add( executablePath );
@@ -128,13 +244,10 @@ public abstract class AbstractCellposeSettings
 
 		// Model.
 		cmd.add( "--pretrained_model" );
-		if ( model.isCustom() )
-			cmd.add( customModelPath );
-		else
-			cmd.add( model.getPath() );
+		cmd.add( getModelPath() );
 
-		// Export results as PNG.
-		cmd.add( "--save_png" );
+		// Export results in the requested format.
+		cmd.add( maskFormat.getFlag() );
 
 		// Do not save Numpy files.
 		cmd.add( "--no_npy" );
@@ -1,27 +1,35 @@
 package fiji.plugin.trackmate.cellpose;
 
-import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
-import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
-import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
-
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,34 +39,41 @@ import org.apache.commons.io.input.TailerListenerAdapter;
 import org.scijava.Cancelable;
 
 import fiji.plugin.trackmate.Logger;
-import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.Spot;
 import fiji.plugin.trackmate.SpotCollection;
-import fiji.plugin.trackmate.TrackMate;
-import fiji.plugin.trackmate.detection.LabelImageDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
 import fiji.plugin.trackmate.util.TMUtils;
 import ij.IJ;
-import ij.ImagePlus;
-import ij.gui.NewImage;
-import ij.plugin.Concatenator;
-import ij.process.ImageConverter;
-import ij.process.StackConverter;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imglib2.Interval;
 import net.imglib2.algorithm.MultiThreaded;
-import net.imglib2.img.display.imagej.ImageJFunctions;
-import net.imglib2.img.display.imagej.ImgPlusViews;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 
 public class CellposeDetector< T extends RealType< T > & NativeType< T > > implements SpotGlobalDetector< T >, Cancelable, MultiThreaded
 {
 
+	/**
+	 * How many batches of frames we aim at per concurrent task, to balance the
+	 * load between them.
+	 */
+	private static final int BATCHES_PER_TASK = 4;
+
+	/**
+	 * How long we wait for a cellpose process to die after killing it, in ms.
+	 */
+	private static final long KILL_TIMEOUT = 2000l;
+
+	/**
+	 * Delay before the first retry of a failed batch, in ms. Doubled at each
+	 * retry, up to {@link #MAX_RETRY_DELAY}.
+	 */
+	private static final long RETRY_DELAY = 1000l;
+
+	private static final long MAX_RETRY_DELAY = 16000l;
+
 	private static final Function< Long, String > nameGen = ( frame ) -> String.format( "%d", frame );
 
 	private final ImgPlus< T > img;
@@ -79,7 +94,7 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 	private boolean isCanceled;
 
-	private final List< CellposeTask > processes = new ArrayList<>();
+	private final List< CellposeTask > processes = new CopyOnWriteArrayList<>();
 
 	private int numThreads;
 
@@ -87,6 +102,81 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 	private final File cellposeLogFile;
 
+	private volatile MaskWatcher maskWatcher;
+
+	private volatile Tailer tailer;
+
+	private volatile ExecutorService converters;
+
+	private volatile ScratchSpace scratch;
+
+	/**
+	 * The estimated room a frame and its mask take in the scratch space.
+	 */
+	private volatile long frameBytes;
+
+	/**
+	 * The number of bits frames are quantized to when exported, or 0 if they
+	 * are exported with their own type.
+	 */
+	private volatile int exportBits;
+
+	/**
+	 * One mask reader per converter thread, to reuse its buffers.
+	 */
+	private final ThreadLocal< MaskReader > maskReaders = ThreadLocal.withInitial( MaskReader::new );
+
+	/**
+	 * The label converters of the converter threads, for the current
+	 * detection.
+	 */
+	private volatile ThreadLocal< LabelToSpotConverter > labelConverters;
+
+	/**
+	 * The channels to export, or <code>null</code> for all of them.
+	 */
+	private volatile int[] channels;
+
+	/**
+	 * The channel arguments for cellpose, matching the exported channels.
+	 */
+	private volatile int chan;
+
+	private volatile int chan2;
+
+	/**
+	 * Where the spots of each frame are saved as soon as they are converted.
+	 */
+	private volatile CheckpointStore checkpoint;
+
+	/**
+	 * The tuner timing the masks, or <code>null</code> when not tuning.
+	 */
+	private volatile ConcurrencyTuner tuner;
+
+	private CellposeTimings timings = new CellposeTimings();
+
+	/**
+	 * The conversion of the mask of each frame to spots.
+	 */
+	private final Map< Long, Future< List< Spot > > > conversions = new ConcurrentHashMap<>();
+
+	/**
+	 * The frames cellpose failed on, even after retries.
+	 */
+	private final Set< Long > failedFrames = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The number of frames cellpose produced a mask for in this run, not
+	 * counting the frames resumed from a checkpoint.
+	 */
+	private final AtomicInteger nSegmented = new AtomicInteger();
+
+	/**
+	 * The format of the masks cellpose was last asked to save.
+	 */
+	private volatile MaskFormat maskFormat = MaskFormat.PNG;
+
 	public CellposeDetector(
 			final ImgPlus< T > img,
 			final Interval interval,
@@ -122,191 +212,245 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 		 * Dispatch time-points to several tasks.
 		 */
 
-		final List< ImagePlus > imps = crop( img, interval, nameGen );
+		timings = new CellposeTimings();
+		final long cropStart = System.nanoTime();
+		final List< Frame > frames = listFrames( img, interval, nameGen );
+		timings.add( CellposeTimings.Stage.CROP, System.nanoTime() - cropStart );
 
-		final int nConcurrentTasks;
 		/*
-		 * We use multiprocessing ONLY if the user stated that they want to use
-		 * the CPU and if we are on Mac. I tested multiprocessing on CPU under
-		 * windows, and there is no benefit for Windows. But there is a strong
-		 * speedup on Mac.
-		 * 
-		 * On a PC with Windows, forcing Cellpose to run with the CPU: There is
-		 * no benefit from splitting the load between 1,2, 10 or 20 processes.
-		 * It seems like 1 Cellpose process can already use ALL the cores by
-		 * itself and running several Cellpose processes concurrently does not
-		 * lead to shorter processing time.
-		 * 
-		 * For a source image 1024x502 over 92 time-points, 3 channels: - 1
-		 * thread -> 24.4 min - 8 thread -> 4.1 min (there is not a x8 speedup
-		 * factor, which is to be expected)
+		 * Only export the channels cellpose reads, and renumber them.
 		 */
-		if ( !cellposeSettings.useGPU && IJ.isMacintosh() )
-			nConcurrentTasks = numThreads;
-		else
-			nConcurrentTasks = 1;
-
-		final List< List< ImagePlus > > timepoints = new ArrayList<>( nConcurrentTasks );
-		for ( int i = 0; i < nConcurrentTasks; i++ )
-			timepoints.add( new ArrayList<>() );
 
-		Iterator< List< ImagePlus > > it = timepoints.iterator();
-		for ( int t = 0; t < imps.size(); t++ )
+		final int channelIndex = img.dimensionIndex( Axes.CHANNEL );
+		final int nChannels = ( channelIndex < 0 ) ? 1 : ( int ) img.dimension( channelIndex );
+		channels = cellposeSettings.getUsedChannels( nChannels );
+		chan = cellposeSettings.chan;
+		chan2 = cellposeSettings.chan2;
+		if ( channels != null )
 		{
-			if ( !it.hasNext() )
-				it = timepoints.iterator();
-			it.next().add( imps.get( t ) );
+			chan = 1 + Arrays.binarySearch( channels, cellposeSettings.chan - 1 );
+			if ( cellposeSettings.chan2 > 0 )
+				chan2 = 1 + Arrays.binarySearch( channels, cellposeSettings.chan2 - 1 );
+			if ( channels.length < nChannels )
+				logger.log( "Exporting " + channels.length + " of " + nChannels + " channels.\n" );
 		}
 
 		/*
-		 * Create tasks for each list of imps.
+		 * Convert masks to spots as soon as they are written, while cellpose
+		 * is still running.
 		 */
 
-		processes.clear();
-		for ( final List< ImagePlus > list : timepoints )
-			processes.add( new CellposeTask( list ) );
-
+		final double[] calibration = TMUtils.getSpatialCalibration( img );
+		final SimplificationMethod simplification = !cellposeSettings.simplifyContours ? null
+				: ( cellposeSettings.simplificationMethod == null ) ? SimplificationMethod.DOUGLAS_PEUCKER
+				: cellposeSettings.simplificationMethod;
+		labelConverters = ThreadLocal.withInitial( () -> new LabelToSpotConverter( calibration,
+				interval.min( 0 ), interval.min( 1 ), frameInterval,
+				simplification, cellposeSettings.simplificationTolerance, cellposeSettings.maxVertices,
+				cellposeSettings.minArea, cellposeSettings.maxArea ) );
+		final List< Spot > slist = new ArrayList<>();
+		final int maxMasks = CellposePreferences.maxMasksInMemory();
+		final int nConverters = Math.max( 1, ( maxMasks > 0 ) ? Math.min( maxMasks, numThreads ) : numThreads );
+		final ExecutorService converters = Executors.newFixedThreadPool( nConverters );
+		this.converters = converters;
+		conversions.clear();
+		failedFrames.clear();
+		nSegmented.set( 0 );
+		maskFormat = MaskFormat.PNG;
+		logger.log( "Converting masks to spots as they are produced, " + nConverters + " at a time.\n" );
 		/*
-		 * Pass tasks to executors.
+		 * Reuse the spots of a previous run that did not complete.
 		 */
 
-		// Redirect log to logger.
-		final Tailer tailer = Tailer.create( cellposeLogFile, new LoggerTailerListener( logger ), 200, true );
-
-		final ExecutorService executors = Executors.newFixedThreadPool( nConcurrentTasks );
-		final List< String > resultDirs = new ArrayList<>( nConcurrentTasks );
-		List< Future< String > > results;
-		try
+		final CheckpointStore checkpoint = CheckpointStore.open( img, interval, cellposeSettings, logger );
+		this.checkpoint = checkpoint;
+		final Map< Long, File > checkpointed = checkpoint.getFrames();
+		final List< Frame > todo;
+		if ( checkpointed.isEmpty() )
 		{
-			results = executors.invokeAll( processes );
-			for ( final Future< String > future : results )
-				resultDirs.add( future.get() );
-		}
-		catch ( final InterruptedException | ExecutionException e )
-		{
-			errorMessage = baseErrorMessage + "Problem running "
-					+ cellposeSettings.getExecutableName()
-					+ ":\n" + e.getMessage() + '\n';
-			e.printStackTrace();
-			return false;
+			// Keep the frames lazy.
+			todo = frames;
 		}
-		finally
+		else
 		{
-			tailer.stop();
-			logger.setStatus( "" );
-			logger.setProgress( 1. );
+			todo = new ArrayList<>();
+			for ( final Frame frame : frames )
+			{
+				final File saved = checkpointed.get( frame.t );
+				if ( saved == null )
+					todo.add( frame );
+				else
+					conversions.put( frame.t, converters.submit( () -> CheckpointStore.load( saved ) ) );
+			}
 		}
+		if ( todo.size() < frames.size() )
+			logger.log( "Resuming a previous run that did not complete: reusing the spots of " + ( frames.size() - todo.size() )
+					+ " frames saved in " + checkpoint.getDir() + ", " + todo.size() + " frames left to process.\n" );
 
 		/*
-		 * Did we have a problem with independent tasks?
+		 * Exchange frames and masks with cellpose in RAM if we can. Each
+		 * process has at most a chunk being exported, one being segmented and
+		 * one being converted.
 		 */
 
-		for ( final CellposeTask task : processes )
-		{
-			if ( !task.isOk() )
-				return false;
-		}
+		final int maxInFlight = ( int ) Math.min( todo.size(),
+				3l * Math.max( 1, numThreads ) * Math.max( 1, CellposePreferences.chunkSize() ) );
+		final int nExported = ( channels == null ) ? nChannels : channels.length;
+		final int bits = CellposePreferences.exportBits();
+		exportBits = ( bits > 0 && new TiffWriter<>( img, false, bits ).isQuantized() ) ? bits : 0;
+		if ( exportBits > 0 )
+			logger.log( "Exporting frames quantized to " + exportBits + " bits"
+					+ ( CellposePreferences.checkExport() ? ", checking the masks on a sample frame.\n"
+							: ". Warning: the masks are not compared to the ones of a float export.\n" ) );
+		frameBytes = bytesPerFrame( interval, nExported, ( exportBits > 0 ) ? exportBits / 8 : 4 );
+		final ScratchSpace scratch = ScratchSpace.select( maxInFlight * frameBytes, logger );
+		this.scratch = scratch;
+		logger.log( "Exchanging frames and masks with " + cellposeSettings.getExecutableName() + " in " + scratch + ".\n" );
+
+		final MaskWatcher maskWatcher = new MaskWatcher( 200, ( frame, file ) -> {
+			final ConcurrencyTuner tuning = tuner;
+			if ( tuning != null )
+				tuning.maskProduced();
+			conversions.put( frame, converters.submit( () -> convertMask( file, frame ) ) );
+		} );
+		this.maskWatcher = maskWatcher;
 
-		/*
-		 * Get the result masks back.
-		 */
+		// Redirect log to logger.
+		final Tailer tailer = Tailer.create( cellposeLogFile, new LoggerTailerListener( logger ), 200, true );
+		this.tailer = tailer;
 
-		logger.log( "Reading " + cellposeSettings.getExecutableName() + " masks.\n" );
-		final List< ImagePlus > masks = new ArrayList<>( imps.size() );
-		for ( int t = 0; t < imps.size(); t++ )
+		final List< String > resultDirs = new ArrayList<>();
+		boolean tasksOk = false;
+		try
 		{
-			final String name = nameGen.apply( ( long ) minT + t ) + "_cp_masks.png";
+			/*
+			 * If asked, tell how much quantizing the frames changes the
+			 * masks, on a frame of the middle of the movie.
+			 */
+			if ( exportBits > 0 && CellposePreferences.checkExport() && !todo.isEmpty() )
+			{
+				final CellposeTask reference = new CellposeTask( new ConcurrentLinkedQueue<>(), ThreadBudget.NONE );
+				processes.add( reference );
+				reference.compareExports( todo.get( todo.size() / 2 ), frameBytes + bytesPerFrame( interval, nExported, 4 ) );
+				processes.remove( reference );
+				if ( isCanceled )
+					return false;
+			}
 
-			// Try to find corresponding mask in any of the result dirs we got.
-			ImagePlus tpImp = null;
-			for ( final String tmpDir : resultDirs )
+			/*
+			 * We use multiprocessing ONLY if the user stated that they want to
+			 * use the CPU. Whether running several processes concurrently
+			 * helps depends on the machine. On a PC with Windows, 1 Cellpose
+			 * process can already use ALL the cores by itself. On a Mac, for a
+			 * source image 1024x502 over 92 time-points, 3 channels: 1 thread
+			 * -> 24.4 min, 8 threads -> 4.1 min. So we measure the throughput
+			 * on the first frames and remember the best level for this host.
+			 */
+			final int maxConcurrentTasks = cellposeSettings.useGPU ? 1 : Math.max( 1, numThreads );
+			final int forcedConcurrentTasks = CellposePreferences.concurrency();
+			int nProcessed = 0;
+			final int nConcurrentTasks;
+			if ( maxConcurrentTasks == 1 )
+			{
+				nConcurrentTasks = 1;
+			}
+			else if ( forcedConcurrentTasks > 0 )
+			{
+				nConcurrentTasks = Math.min( maxConcurrentTasks, forcedConcurrentTasks );
+			}
+			else
 			{
-				final String path = new File( tmpDir.toString(), name ).getAbsolutePath();
-				tpImp = IJ.openImage( path );
-				if ( null != tpImp )
+				final String frameSize = interval.dimension( 0 ) + "x" + interval.dimension( 1 ) + "x" + nExported;
+				final ConcurrencyTuner tuner = new ConcurrencyTuner( cellposeSettings, maxConcurrentTasks, frameSize, logger );
+				final int storedConcurrentTasks = tuner.getStoredLevel();
+				if ( storedConcurrentTasks > 0 )
+				{
+					nConcurrentTasks = storedConcurrentTasks;
+				}
+				else if ( ConcurrencyTuner.canTune( todo.size() ) )
 				{
-					// Found it. Convert it to 16-bit if we have to.
-					if ( tpImp.getType() != ImagePlus.GRAY16 )
+					this.tuner = tuner;
+					try
+					{
+						nConcurrentTasks = tuner.tune( todo.size(),
+								( from, to, level, batchSize ) -> runTasks( todo.subList( from, to ), level, batchSize, resultDirs ) );
+					}
+					finally
 					{
-						if ( tpImp.getStackSize() > 1 )
-							new StackConverter( tpImp ).convertToGray16();
-						else
-							new ImageConverter( tpImp ).convertToGray16();
+						this.tuner = null;
 					}
-					break;
+					if ( !tuner.isOk() )
+						return false;
+					nProcessed = tuner.getFramesUsed();
+				}
+				else
+				{
+					// Not enough frames to measure, use the default.
+					nConcurrentTasks = IJ.isMacintosh() ? maxConcurrentTasks : 1;
 				}
 			}
 
-			// Did we succeed?
-			if ( null == tpImp )
-			{
-				logger.append( "Could not find results file for timepoint: " + name + '\n' );
-				final ImagePlus blank = NewImage.createImage(
-						"blank_" + t,
-						imps.get( 0 ).getWidth(),
-						imps.get( 0 ).getHeight(),
-						imps.get( 0 ).getNSlices(),
-						16, // bitdepth
-						NewImage.FILL_BLACK );
-				masks.add( blank );
-			}
-			else
+			if ( nProcessed < todo.size()
+					&& !runTasks( todo.subList( nProcessed, todo.size() ), nConcurrentTasks, 0, resultDirs ) )
+				return false;
+			tasksOk = true;
+		}
+		finally
+		{
+			tailer.stop();
+			maskWatcher.stop();
+			logger.setStatus( "" );
+			logger.setProgress( 1. );
+			if ( !tasksOk )
 			{
-				masks.add( tpImp );
+				converters.shutdownNow();
+				logCheckpoint( checkpoint );
 			}
 		}
-		final Concatenator concatenator = new Concatenator();
-		final ImagePlus output = concatenator.concatenateHyperstacks(
-				masks.toArray( new ImagePlus[] {} ),
-				img.getName() + "_" + cellposeSettings.getExecutableName() + "Output", false );
-
-		// Copy calibration.
-		final double[] calibration = TMUtils.getSpatialCalibration( img );
-		output.getCalibration().pixelWidth = calibration[ 0 ];
-		output.getCalibration().pixelHeight = calibration[ 1 ];
-		output.getCalibration().pixelDepth = calibration[ 2 ];
-		output.setDimensions( 1, imps.get( 0 ).getNSlices(), imps.size() );
-		output.setOpenAsHyperStack( true );
 
 		/*
-		 * Run in the label detector.
+		 * Collect the masks the watcher did not see yet, and wait for all
+		 * conversions to finish.
 		 */
 
-		logger.log( "Converting masks to spots.\n" );
-		final Settings labelImgSettings = new Settings( output );
-		final LabelImageDetectorFactory< ? > labeImageDetectorFactory = new LabelImageDetectorFactory<>();
-		final Map< String, Object > detectorSettings = labeImageDetectorFactory.getDefaultSettings();
-		detectorSettings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
-		detectorSettings.put( KEY_SIMPLIFY_CONTOURS, cellposeSettings.simplifyContours );
-		labelImgSettings.detectorFactory = labeImageDetectorFactory;
-		labelImgSettings.detectorSettings = detectorSettings;
-
-		final TrackMate labelImgTrackMate = new TrackMate( labelImgSettings );
-		labelImgTrackMate.setNumThreads( numThreads );
-		if ( !labelImgTrackMate.execDetection() )
+		maskWatcher.flush();
+		converters.shutdown();
+		try
 		{
-			errorMessage = baseErrorMessage + labelImgTrackMate.getErrorMessage();
+			for ( final Future< List< Spot > > future : conversions.values() )
+				slist.addAll( future.get() );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = baseErrorMessage + "Problem converting masks to spots:\n" + e.getMessage() + '\n';
+			e.printStackTrace();
+			converters.shutdownNow();
+			logCheckpoint( checkpoint );
 			return false;
 		}
-		final SpotCollection tmpSpots = labelImgTrackMate.getModel().getSpots();
 
-		/*
-		 * Reposition spots with respect to the interval and time.
-		 */
-		final List< Spot > slist = new ArrayList<>();
-		for ( final Spot spot : tmpSpots.iterable( false ) )
+		boolean complete = failedFrames.isEmpty();
+		if ( !complete )
+		{
+			final List< Long > failed = new ArrayList<>( failedFrames );
+			Collections.sort( failed );
+			logger.log( cellposeSettings.getExecutableName() + " failed on " + failed.size()
+					+ " frame(s) even after retries, they have no spots: " + failed + '\n' );
+		}
+		for ( int t = 0; t < frames.size(); t++ )
 		{
-			for ( int d = 0; d < interval.numDimensions() - 1; d++ )
+			final long frame = minT + t;
+			if ( !conversions.containsKey( frame ) && !failedFrames.contains( frame ) )
 			{
-				final double pos = spot.getDoublePosition( d ) + interval.min( d ) * calibration[ d ];
-				spot.putFeature( Spot.POSITION_FEATURES[ d ], Double.valueOf( pos ) );
+				logger.append( "Could not find results file for timepoint: " + nameGen.apply( frame ) + maskFormat.getSuffix() + '\n' );
+				complete = false;
 			}
-			// Shift in time.
-			final int frame = spot.getFeature( Spot.FRAME ).intValue() + minT;
-			spot.putFeature( Spot.POSITION_T, frame * frameInterval );
-			spot.putFeature( Spot.FRAME, Double.valueOf( frame ) );
-			slist.add( spot );
 		}
+		// Keep the spots if some frames are missing, to retry them.
+		if ( complete )
+			checkpoint.clear();
+		else
+			logCheckpoint( checkpoint );
 		spots = SpotCollection.fromCollection( slist );
 
 		/*
@@ -315,52 +459,194 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 		final long end = System.currentTimeMillis();
 		this.processingTime = end - start;
+		timings.setWallTime( processingTime );
+		logger.log( timings.summary() );
 
 		return true;
 	}
 
 	/**
-	 * Add a hook to delete the content of given path when Fiji quits. Taken
-	 * from https://stackoverflow.com/a/20280989/201698
+	 * Tells where the spots of the frames converted so far are kept, for a
+	 * detection that did not complete.
+	 */
+	private void logCheckpoint( final CheckpointStore checkpoint )
+	{
+		if ( checkpoint.getDir() != null && Files.isDirectory( checkpoint.getDir() ) )
+			logger.log( "The spots of the frames converted so far are kept in " + checkpoint.getDir()
+					+ ", a re-run with the same image and settings will resume from them.\n" );
+	}
+
+	/**
+	 * Converts the mask of one frame to spots, with the label converter of the
+	 * current thread, and saves them in the checkpoint store. The spots come
+	 * out positioned in the source image and in time.
+	 * 
+	 * @param file
+	 *            the mask file.
+	 * @param frame
+	 *            the frame of the mask.
+	 * @return the spots found in the mask.
+	 */
+	private List< Spot > convertMask( final File file, final long frame )
+	{
+		final long readStart = System.nanoTime();
+		final long nBytes = file.length();
+		final MaskReader reader = maskReaders.get();
+		final int[] labels = reader.read( file );
+		if ( labels == null )
+			throw new RuntimeException( "Could not read mask file " + file );
+		final long conversionStart = System.nanoTime();
+		timings.add( CellposeTimings.Stage.MASK_READ, frame, conversionStart - readStart, nBytes );
+
+		final List< Spot > spots = labelConverters.get().convert( labels, reader.getWidth(), reader.getHeight(), frame );
+		timings.add( CellposeTimings.Stage.CONVERSION, frame, System.nanoTime() - conversionStart, 0l );
+		checkpoint.save( frame, spots );
+		return spots;
+	}
+
+	/**
+	 * Runs cellpose on the specified frames with the specified number of
+	 * concurrent tasks. Frames are not assigned to tasks up front: they are
+	 * split in small batches, and each task takes the next batch as soon as it
+	 * is ready for it, so that a slow task does not hold back the others.
+	 * 
+	 * @param frames
+	 *            the frames to process.
+	 * @param nConcurrentTasks
+	 *            the number of tasks to run concurrently.
+	 * @param fixedBatchSize
+	 *            the number of frames per batch, or 0 to pick it from the
+	 *            number of frames and tasks.
+	 * @param resultDirs
+	 *            a list in which to add the folders where masks are written.
+	 * @return <code>true</code> if all the tasks completed properly.
+	 */
+	private boolean runTasks( final List< Frame > frames, final int nConcurrentTasks, final int fixedBatchSize, final List< String > resultDirs )
+	{
+		/*
+		 * Split frames in batches. Aim at several batches per task so that
+		 * the load can be balanced, but no more than the chunk size.
+		 */
+
+		final int chunkSize = CellposePreferences.chunkSize();
+		final int maxBatchSize = ( chunkSize <= 0 ) ? frames.size() : chunkSize;
+		final int batchSize = ( fixedBatchSize > 0 ) ? fixedBatchSize
+				: Math.max( 1, Math.min( maxBatchSize, frames.size() / ( BATCHES_PER_TASK * nConcurrentTasks ) ) );
+		final Queue< List< Frame > > batches = new ConcurrentLinkedQueue<>();
+		for ( int from = 0; from < frames.size(); from += batchSize )
+			batches.add( frames.subList( from, Math.min( frames.size(), from + batchSize ) ) );
+
+		/*
+		 * Create tasks that share the batches.
+		 */
+
+		processes.clear();
+		final int nTasks = Math.min( nConcurrentTasks, batches.size() );
+		for ( int i = 0; i < nTasks; i++ )
+		{
+			// Split the threads between processes if we run on the CPU.
+			final ThreadBudget budget = cellposeSettings.useGPU
+					? ThreadBudget.NONE
+					: ThreadBudget.forProcess( Math.max( 1, numThreads ), nTasks, i );
+			processes.add( new CellposeTask( batches, budget ) );
+		}
+		if ( nTasks > 1 )
+			logger.log( "Running " + nTasks + " concurrent processes, each with " + processes.get( 0 ).budget + ".\n" );
+
+		/*
+		 * Pass tasks to executors.
+		 */
+
+		final ExecutorService executors = Executors.newFixedThreadPool( Math.max( 1, nTasks ) );
+		final long start = System.nanoTime();
+		try
+		{
+			final List< Future< String > > results = executors.invokeAll( processes );
+			for ( final Future< String > future : results )
+				resultDirs.add( future.get() );
+			if ( nTasks > 1 )
+				logBalance( ( System.nanoTime() - start ) / 1e9 );
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = baseErrorMessage + "Problem running "
+					+ cellposeSettings.getExecutableName()
+					+ ":\n" + e.getMessage() + '\n';
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			executors.shutdown();
+		}
+
+		if ( isCanceled )
+		{
+			errorMessage = baseErrorMessage + "Detection canceled"
+					+ ( ( cancelReason == null ) ? "." : ": " + cancelReason );
+			return false;
+		}
+
+		/*
+		 * Did we have a problem with independent tasks?
+		 */
+
+		for ( final CellposeTask task : processes )
+		{
+			if ( !task.isOk() )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Logs the number of frames, throughput and idle time of each task, so that
+	 * imbalance between concurrent processes can be spotted.
+	 * 
+	 * @param wallTime
+	 *            the time it took to run all tasks, in seconds.
+	 */
+	private void logBalance( final double wallTime )
+	{
+		logger.log( String.format( Locale.US, "Ran %d concurrent processes in %.1f s:\n", processes.size(), wallTime ) );
+		for ( int i = 0; i < processes.size(); i++ )
+		{
+			final CellposeTask task = processes.get( i );
+			final double busyTime = task.busyTime / 1e9;
+			final double fps = ( busyTime > 0. ) ? task.nFrames / busyTime : 0.;
+			logger.log( String.format( Locale.US, " - process %d: %d frames, %.3f frames/s, busy %.1f s, idle %.1f s.\n",
+					i + 1, task.nFrames, fps, busyTime, Math.max( 0., wallTime - busyTime ) ) );
+		}
+	}
+
+	/**
+	 * Deletes the given path and its content.
 	 * 
 	 * @param path
+	 * @throws IOException
 	 */
-	protected static void recursiveDeleteOnShutdownHook( final Path path )
+	protected static void recursiveDelete( final Path path ) throws IOException
 	{
-		Runtime.getRuntime().addShutdownHook( new Thread( new Runnable()
+		Files.walkFileTree( path, new SimpleFileVisitor< Path >()
 		{
 			@Override
-			public void run()
+			public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) throws IOException
 			{
-				try
-				{
-					Files.walkFileTree( path, new SimpleFileVisitor< Path >()
-					{
-						@Override
-						public FileVisitResult visitFile( final Path file, final BasicFileAttributes attrs ) throws IOException
-						{
-							Files.delete( file );
-							return FileVisitResult.CONTINUE;
-						}
-
-						@Override
-						public FileVisitResult postVisitDirectory( final Path dir, final IOException e ) throws IOException
-						{
-							if ( e == null )
-							{
-								Files.delete( dir );
-								return FileVisitResult.CONTINUE;
-							}
-							throw e;
-						}
-					} );
-				}
-				catch ( final IOException e )
+				Files.delete( file );
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory( final Path dir, final IOException e ) throws IOException
+			{
+				if ( e == null )
 				{
-					throw new RuntimeException( "Failed to delete " + path, e );
+					Files.delete( dir );
+					return FileVisitResult.CONTINUE;
 				}
+				throw e;
 			}
-		} ) );
+		} );
 	}
 
 	@Override
@@ -397,6 +683,17 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 		return processingTime;
 	}
 
+	/**
+	 * Returns the time and bytes spent in each stage of the last detection,
+	 * in total and per frame.
+	 * 
+	 * @return the timings.
+	 */
+	public CellposeTimings getTimings()
+	{
+		return timings;
+	}
+
 	private static class LoggerTailerListener extends TailerListenerAdapter
 	{
 		private final Logger logger;
@@ -430,11 +727,32 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 		return isCanceled;
 	}
 
+	/**
+	 * Cancels the detection. Kills the cellpose processes and all their
+	 * descendants, stops the log tailer and the mask conversion, and deletes
+	 * the tmp folders right away. The pipeline stages notice the cancellation
+	 * and stop, and {@link #process()} returns <code>false</code> without
+	 * reading the masks.
+	 */
 	@Override
 	public void cancel( final String reason )
 	{
-		isCanceled = true;
 		cancelReason = reason;
+		isCanceled = true;
+
+		final Tailer t = tailer;
+		if ( t != null )
+			t.stop();
+		final MaskWatcher w = maskWatcher;
+		if ( w != null )
+			w.stop();
+		final ExecutorService c = converters;
+		if ( c != null )
+			c.shutdownNow();
+		// Unblock whoever waits for a conversion that will never run.
+		for ( final Future< List< Spot > > conversion : conversions.values() )
+			conversion.cancel( true );
+
 		for ( final CellposeTask task : processes )
 			task.cancel();
 	}
@@ -470,15 +788,38 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 	final class CellposeTask implements Callable< String >
 	{
 
-		private Process process;
+		private volatile Process process;
+
+		private volatile CellposeWorkerPool.Worker worker;
+
+		private volatile Path tmpDir;
 
 		private final AtomicBoolean ok;
 
-		private final List< ImagePlus > imps;
+		private final Queue< List< Frame > > batches;
+
+		/**
+		 * Number of frames segmented by this task.
+		 */
+		private int nFrames;
+
+		/**
+		 * Time spent running cellpose, in ns.
+		 */
+		private long busyTime;
+
+		private final ThreadBudget budget;
+
+		/**
+		 * Whether this task segments the sample frame of the export check,
+		 * which is timed as a whole and not in the stages of the frames.
+		 */
+		private boolean reference;
 
-		public CellposeTask( final List< ImagePlus > imps )
+		public CellposeTask( final Queue< List< Frame > > batches, final ThreadBudget budget )
 		{
-			this.imps = imps;
+			this.batches = batches;
+			this.budget = budget;
 			this.ok = new AtomicBoolean( true );
 		}
 
@@ -489,8 +830,80 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 
 		void cancel()
 		{
-			if ( process != null )
-				process.destroy();
+			ProcessTree.kill( process, KILL_TIMEOUT );
+			final CellposeWorkerPool.Worker w = worker;
+			if ( w != null )
+				CellposeWorkerPool.get().discard( w );
+			deleteTmpDir();
+		}
+
+		private void deleteTmpDir()
+		{
+			final Path dir = tmpDir;
+			if ( dir != null )
+				// If files are still being written, we will try again on exit.
+				ScratchSpace.release( dir );
+		}
+
+		/**
+		 * Tries to run cellpose in a persistent worker process.
+		 *
+		 * @return <code>true</code> if the job was run by a worker,
+		 *         <code>false</code> if we have to fall back to the command
+		 *         line.
+		 */
+		private boolean runInWorker( final List< String > cmd, final Chunk chunk )
+		{
+			if ( !CellposePreferences.useWorkers() )
+				return false;
+			final CellposeWorkerPool pool = CellposeWorkerPool.get();
+			if ( !pool.supports( cellposeSettings ) )
+				return false;
+
+			try
+			{
+				final long t0 = System.nanoTime();
+				worker = pool.acquire( cellposeSettings, budget );
+				if ( !reference )
+					timings.add( CellposeTimings.Stage.SPAWN, System.nanoTime() - t0 );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not start a persistent " + cellposeSettings.getExecutableName()
+						+ " worker, using the command line instead:\n" + e.getMessage() + '\n' );
+				pool.markUnsupported( cellposeSettings );
+				return false;
+			}
+
+			try
+			{
+				logger.setStatus( "Running " + cellposeSettings.getExecutableName() );
+				logger.log( "Running " + cellposeSettings.getExecutableName() + " in a persistent worker with args:\n" );
+				final List< String > args = CellposeWorkerPool.toWorkerArgs( cmd );
+				logger.log( String.join( " ", args ) );
+				logger.log( "\n" );
+				final long t0 = System.nanoTime();
+				final String error = worker.run( args );
+				if ( !reference )
+					timings.add( CellposeTimings.Stage.INFERENCE, chunk.timepoints(), System.nanoTime() - t0 );
+				if ( error == null )
+				{
+					pool.release( worker );
+					return true;
+				}
+				if ( isCanceled )
+					return true;
+
+				logger.log( "The persistent " + cellposeSettings.getExecutableName()
+						+ " worker failed, using the command line instead:\n" + error + '\n' );
+				pool.markUnsupported( cellposeSettings );
+				pool.discard( worker );
+				return false;
+			}
+			finally
+			{
+				worker = null;
+			}
 		}
 
 		@Override
@@ -500,11 +913,11 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 			/*
 			 * Prepare tmp dir.
 			 */
-			Path tmpDir = null;
+			final Path dir;
 			try
 			{
-				tmpDir = Files.createTempDirectory( "TrackMate-" + cellposeSettings.getExecutableName() + "_" );
-				recursiveDeleteOnShutdownHook( tmpDir );
+				dir = scratch.createTempDirectory( "TrackMate-" + cellposeSettings.getExecutableName() + "_" );
+				tmpDir = dir;
 			}
 			catch ( final IOException e1 )
 			{
@@ -514,35 +927,443 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 			}
 
 			/*
-			 * Save time-points as individual frames.
+			 * Process the frames chunk by chunk, in a pipeline: chunk k+1 is
+			 * exported while chunk k is segmented and the masks of chunk k-1
+			 * are converted. The queues between stages are bounded, so that
+			 * only a few chunks are on disk at any time. The exporter takes
+			 * the next batch from the shared queue only once the previous
+			 * chunk was handed over, so that a task does not hoard frames
+			 * other tasks could process.
 			 */
 
-			logger.log( "Saving single time-points.\n" );
-			// Careful, now time starts at 0, even if in the interval it is not
-			// the case.
-			for ( final ImagePlus imp : imps )
+			final BlockingQueue< Chunk > exported = new SynchronousQueue<>();
+			final BlockingQueue< Chunk > segmented = new ArrayBlockingQueue<>( 1 );
+			final ExecutorService stages = Executors.newFixedThreadPool( 2 );
+			try
+			{
+				stages.submit( () -> export( dir, exported ) );
+				final Future< ? > ingester = stages.submit( () -> ingest( segmented ) );
+				while ( true )
+				{
+					final Chunk chunk = exported.take();
+					if ( chunk == Chunk.END || isCanceled )
+						break;
+					final long t0 = System.nanoTime();
+					final List< Chunk > done = new ArrayList<>();
+					segment( chunk, 0, done );
+					busyTime += System.nanoTime() - t0;
+					if ( !ok.get() || isCanceled )
+						break;
+					nFrames += chunk.frames.size();
+					for ( final Chunk c : done )
+						segmented.put( c );
+				}
+				segmented.put( Chunk.END );
+				if ( !isCanceled )
+					ingester.get();
+			}
+			finally
 			{
-				final String name = imp.getShortTitle() + ".tif";
-				IJ.saveAsTiff( imp, Paths.get( tmpDir.toString(), name ).toString() );
+				stages.shutdownNow();
+				// The masks were consumed, or we are done with them.
+				deleteTmpDir();
 			}
+			return dir.toString();
+		}
 
-			/*
-			 * Run Cellpose.
-			 */
+		/**
+		 * Segments a frame exported as float and quantized, and logs how much
+		 * the masks of the quantized frame differ from the reference ones.
+		 * Failures are only logged: the comparison is informative. The two
+		 * exports are reserved in the scratch space, and the whole check is
+		 * timed in its own stage, so that the frame is not counted twice.
+		 */
+		private void compareExports( final Frame frame, final long bytes )
+		{
+			reference = true;
+			final long start = System.nanoTime();
+			try
+			{
+				scratch.reserve( bytes );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+			try
+			{
+				compareExportsIn( frame );
+			}
+			finally
+			{
+				scratch.free( bytes );
+				timings.add( CellposeTimings.Stage.EXPORT_CHECK, System.nanoTime() - start );
+			}
+		}
+
+		private void compareExportsIn( final Frame frame )
+		{
+			final Path dir;
+			try
+			{
+				dir = scratch.createTempDirectory( "TrackMate-" + cellposeSettings.getExecutableName() + "_" );
+				tmpDir = dir;
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not compare the quantized export to the float one:\n" + e.getMessage() + '\n' );
+				return;
+			}
+
+			try
+			{
+				final Frame reference = new Frame( frame.t, "reference-float" );
+				final Frame quantized = new Frame( frame.t, "reference-quantized" );
+				final Chunk chunk = new Chunk( Arrays.asList( reference, quantized ), dir, 0l );
+				final Interval xy = Intervals.createMinMax( interval.min( 0 ), interval.min( 1 ), interval.max( 0 ), interval.max( 1 ) );
+				final long floatBytes = new TiffWriter<>( img, scratch.isRamBacked(), 0 )
+						.write( xy, channels, frame.t, dir.resolve( reference.name + ".tif" ) );
+				final long quantizedBytes = new TiffWriter<>( img, scratch.isRamBacked(), exportBits )
+						.write( xy, channels, frame.t, dir.resolve( quantized.name + ".tif" ) );
+				logger.log( String.format( Locale.US, "Exporting frames as %d-bit images: %.1f MB per frame instead of %.1f MB. "
+						+ "Comparing the masks of frame %d to the ones of the float export.\n",
+						exportBits, quantizedBytes / 1e6, floatBytes / 1e6, frame.t ) );
+
+				if ( !infer( chunk ) || isCanceled )
+				{
+					logger.log( "Could not segment the sample frame, the masks were not compared.\n" );
+					return;
+				}
+				maskWatcher.release( dir.toFile() );
+
+				final int[] referenceLabels = readMask( dir, reference );
+				final int[] quantizedLabels = readMask( dir, quantized );
+				if ( referenceLabels == null || quantizedLabels == null )
+				{
+					logger.log( "Could not read the masks of the sample frame, the masks were not compared.\n" );
+					return;
+				}
+				final MaskComparison comparison = MaskComparison.compare( referenceLabels, quantizedLabels );
+				logger.log( "Masks of the " + exportBits + "-bit export of frame " + frame.t + ": " + comparison + ".\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.log( "Could not compare the quantized export to the float one:\n" + e.getMessage() + '\n' );
+			}
+			finally
+			{
+				deleteTmpDir();
+				tmpDir = null;
+			}
+		}
+
+		/**
+		 * Reads the mask of a frame in a folder, whatever its format.
+		 *
+		 * @return a copy of the labels, or <code>null</code> if there is no
+		 *         readable mask.
+		 */
+		private int[] readMask( final Path dir, final Frame frame )
+		{
+			for ( final MaskFormat format : MaskFormat.values() )
+			{
+				final File file = dir.resolve( frame.name + format.getSuffix() ).toFile();
+				if ( !file.isFile() )
+					continue;
+				final MaskReader reader = maskReaders.get();
+				final int[] labels = reader.read( file );
+				if ( labels != null )
+					return Arrays.copyOf( labels, reader.getWidth() * reader.getHeight() );
+			}
+			return null;
+		}
+
+		/**
+		 * Export stage: takes the next batch of frames, and saves them as
+		 * individual TIFF files in a new chunk folder.
+		 */
+		private Void export( final Path tmpDir, final BlockingQueue< Chunk > exported ) throws InterruptedException
+		{
+			final Interval xy = Intervals.createMinMax( interval.min( 0 ), interval.min( 1 ), interval.max( 0 ), interval.max( 1 ) );
+			final TiffWriter< T > writer = new TiffWriter<>( img, scratch.isRamBacked(), exportBits );
+			try
+			{
+				List< Frame > batch;
+				int k = 0;
+				while ( ok.get() && !isCanceled && ( batch = batches.poll() ) != null )
+				{
+					final long reserved = batch.size() * frameBytes;
+					scratch.reserve( reserved );
+					final Chunk chunk = new Chunk( batch, tmpDir.resolve( "chunk-" + k++ ), reserved );
+
+					logger.log( "Saving " + chunk.frames.size() + " single time-points.\n" );
+					Files.createDirectories( chunk.dir );
+					for ( final Frame frame : chunk.frames )
+					{
+						if ( isCanceled )
+							return null;
+						final long t0 = System.nanoTime();
+						final long nBytes = writer.write( xy, channels, frame.t, chunk.dir.resolve( frame.name + ".tif" ) );
+						timings.add( CellposeTimings.Stage.EXPORT, frame.t, System.nanoTime() - t0, nBytes );
+					}
+					exported.put( chunk );
+				}
+			}
+			catch ( final IOException e )
+			{
+				errorMessage = baseErrorMessage + "Could not save time-points to tmp dir:\n" + e.getMessage();
+				ok.set( false );
+			}
+			finally
+			{
+				// Unblocks the inference stage, even if we failed.
+				exported.put( Chunk.END );
+			}
+			return null;
+		}
+
+		/**
+		 * Ingest stage: once cellpose is done with a chunk, makes sure all its
+		 * masks are converted to spots and deletes the chunk folder.
+		 */
+		private Void ingest( final BlockingQueue< Chunk > segmented ) throws InterruptedException
+		{
+			while ( true )
+			{
+				final Chunk chunk = segmented.take();
+				if ( chunk == Chunk.END )
+					return null;
+				// Keep draining so that the inference stage never blocks.
+				if ( isCanceled )
+				{
+					scratch.free( chunk.reserved );
+					continue;
+				}
+
+				try
+				{
+					maskWatcher.release( chunk.dir.toFile() );
+				}
+				catch ( final RuntimeException e )
+				{
+					// The converters are shut down, we failed elsewhere.
+					scratch.free( chunk.reserved );
+					continue;
+				}
+				final Map< Long, File > masks = MaskWatcher.index( chunk.dir.toFile() );
+				for ( final Frame frame : chunk.frames )
+				{
+					final Future< List< Spot > > conversion = conversions.get( frame.t );
+					final File mask = masks.get( frame.t );
+					if ( conversion == null || mask == null )
+						continue;
+					try
+					{
+						// Do not delete the mask before it is read.
+						conversion.get();
+					}
+					catch ( final ExecutionException | CancellationException e )
+					{
+						// Reported when collecting the spots.
+					}
+				}
+				try
+				{
+					recursiveDelete( chunk.dir );
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Could not delete tmp dir " + chunk.dir + ":\n" + e.getMessage() + '\n' );
+				}
+				scratch.free( chunk.reserved );
+			}
+		}
+
+		/**
+		 * Runs cellpose on a chunk. If it fails, for instance because the
+		 * process was killed when running out of memory on a large frame, the
+		 * frames without a mask are split in two halves, moved to new folders
+		 * and retried after a delay, down to single frames. Frames that still
+		 * fail are reported and skipped, the masks of all other frames are
+		 * kept.
+		 * 
+		 * @param chunk
+		 *            the chunk to segment.
+		 * @param attempt
+		 *            the number of retries so far.
+		 * @param done
+		 *            a list in which to add the chunks to ingest.
+		 */
+		private void segment( final Chunk chunk, final int attempt, final List< Chunk > done ) throws InterruptedException
+		{
+			done.add( chunk );
+			if ( infer( chunk ) )
+			{
+				nSegmented.addAndGet( chunk.frames.size() );
+				return;
+			}
+			if ( !ok.get() || isCanceled )
+				return;
+
+			final Map< Long, File > masks = MaskWatcher.index( chunk.dir.toFile() );
+			final List< Frame > failed = new ArrayList<>();
+			for ( final Frame frame : chunk.frames )
+			{
+				final File mask = masks.get( frame.t );
+				if ( mask == null || !MaskWatcher.isComplete( mask ) )
+					failed.add( frame );
+			}
+			nSegmented.addAndGet( chunk.frames.size() - failed.size() );
+			if ( failed.isEmpty() )
+				return;
+
+			// Nothing ever worked in this run: this is not about one bad frame.
+			if ( failed.size() == chunk.frames.size() && nSegmented.get() == 0 && attempt == 0 )
+			{
+				errorMessage = baseErrorMessage + "Problem running " + cellposeSettings.getExecutableName()
+						+ ": the process failed before producing any mask. Please check the log.\n";
+				ok.set( false );
+				return;
+			}
+
+			if ( chunk.frames.size() == 1 )
+			{
+				final long frame = chunk.frames.get( 0 ).t;
+				logger.log( cellposeSettings.getExecutableName() + " failed on frame " + frame + ", skipping it.\n" );
+				failedFrames.add( frame );
+				return;
+			}
+
+			final long delay = Math.min( MAX_RETRY_DELAY, RETRY_DELAY << Math.min( attempt, 16 ) );
+			logger.log( cellposeSettings.getExecutableName() + " failed on " + failed.size() + " of " + chunk.frames.size()
+					+ " frame(s), retrying them in smaller batches in " + ( delay / 1000 ) + " s.\n" );
+			final long wakeUp = System.currentTimeMillis() + delay;
+			while ( !isCanceled && System.currentTimeMillis() < wakeUp )
+				Thread.sleep( 100 );
+
+			final int half = ( failed.size() + 1 ) / 2;
+			final List< List< Frame > > parts = new ArrayList<>();
+			parts.add( failed.subList( 0, half ) );
+			if ( half < failed.size() )
+				parts.add( failed.subList( half, failed.size() ) );
+			for ( int i = 0; i < parts.size() && !isCanceled; i++ )
+			{
+				final Chunk retry = new Chunk( parts.get( i ), chunk.dir.resolveSibling( chunk.dir.getFileName() + "-" + i ), 0l );
+				try
+				{
+					moveFrames( chunk, retry );
+				}
+				catch ( final IOException e )
+				{
+					logger.log( "Could not prepare the retry of " + retry.frames.size() + " frame(s):\n" + e.getMessage() + '\n' );
+					for ( final Frame frame : retry.frames )
+						failedFrames.add( frame.t );
+					continue;
+				}
+				segment( retry, attempt + 1, done );
+			}
+		}
+
+		/**
+		 * Moves the images of the frames of a retry chunk from the folder of
+		 * the failed chunk, and removes their partial masks.
+		 */
+		private void moveFrames( final Chunk from, final Chunk to ) throws IOException
+		{
+			Files.createDirectories( to.dir );
+			for ( final Frame frame : to.frames )
+			{
+				final String name = frame.name;
+				Files.move( from.dir.resolve( name + ".tif" ), to.dir.resolve( name + ".tif" ) );
+				for ( final MaskFormat format : MaskFormat.values() )
+					Files.deleteIfExists( from.dir.resolve( name + format.getSuffix() ) );
+			}
+		}
+
+		/**
+		 * Deletes the images of the frames of a chunk that already have a
+		 * mask, so that cellpose does not segment them again.
+		 *
+		 * @return the number of frames left to segment.
+		 */
+		private int removeSegmented( final Chunk chunk )
+		{
+			final Map< Long, File > masks = MaskWatcher.index( chunk.dir.toFile() );
+			int nLeft = 0;
+			for ( final Frame frame : chunk.frames )
+			{
+				final File mask = masks.get( frame.t );
+				try
+				{
+					if ( mask != null && MaskWatcher.isComplete( mask ) )
+					{
+						Files.deleteIfExists( chunk.dir.resolve( frame.name + ".tif" ) );
+						continue;
+					}
+				}
+				catch ( final IOException e )
+				{
+					// Segment it again.
+				}
+				nLeft++;
+			}
+			return nLeft;
+		}
 
+		/**
+		 * Inference stage: runs cellpose on the frames of a chunk.
+		 * 
+		 * @return <code>true</code> if cellpose ran properly. If
+		 *         <code>false</code>, the task is not ok if the failure cannot
+		 *         be fixed by a retry.
+		 */
+		private boolean infer( final Chunk chunk )
+		{
+			maskWatcher.watch( chunk.dir.toFile() );
 			try
 			{
-				final List< String > cmd = cellposeSettings.toCmdLine( tmpDir.toString() );
+				final String dir = chunk.dir.toString();
+				maskFormat = MaskFormat.NPY;
+				if ( runInWorker( cellposeSettings.toCmdLine( dir, chan, chan2, MaskFormat.NPY ), chunk ) )
+					return true;
+				// A worker that failed may have segmented some frames already.
+				final int nLeft = removeSegmented( chunk );
+				if ( nLeft == 0 )
+					return true;
+				if ( nLeft < chunk.frames.size() )
+					logger.log( "Running the command line on the " + nLeft + " frame(s) the worker did not segment.\n" );
+
+				final MaskFormat format = MaskFormat.forCommandLine( cellposeSettings, p -> process = p );
+				if ( isCanceled )
+					return true;
+				maskFormat = format;
+				final List< String > cmd = cellposeSettings.toCmdLine( dir, chan, chan2, format );
+
 				logger.setStatus( "Running " + cellposeSettings.getExecutableName() );
+				final List< String > pinned = budget.wrap( cmd );
 				logger.log( "Running " + cellposeSettings.getExecutableName() + " with args:\n" );
-				logger.log( String.join( " ", cmd ) );
+				logger.log( String.join( " ", pinned ) );
 				logger.log( "\n" );
-				final ProcessBuilder pb = new ProcessBuilder( cmd );
+				final ProcessBuilder pb = new ProcessBuilder( pinned );
+				budget.applyTo( pb );
 				pb.redirectOutput( ProcessBuilder.Redirect.INHERIT );
 				pb.redirectError( ProcessBuilder.Redirect.INHERIT );
 
+				final long t0 = System.nanoTime();
 				process = pb.start();
-				process.waitFor();
+				final long t1 = System.nanoTime();
+				final int exitCode = process.waitFor();
+				if ( !reference )
+				{
+					timings.add( CellposeTimings.Stage.SPAWN, t1 - t0 );
+					timings.add( CellposeTimings.Stage.INFERENCE, chunk.timepoints(), System.nanoTime() - t1 );
+				}
+				if ( exitCode != 0 && !isCanceled )
+				{
+					logger.log( cellposeSettings.getExecutableName() + " exited with code " + exitCode + ".\n" );
+					return false;
+				}
 			}
 			catch ( final IOException e )
 			{
@@ -559,76 +1380,136 @@ public class CellposeDetector< T extends RealType< T > & NativeType< T > > imple
 				}
 				e.printStackTrace();
 				ok.set( false );
-				return null;
+				return false;
 			}
 			catch ( final Exception e )
 			{
 				errorMessage = baseErrorMessage + "Problem running " + cellposeSettings.getExecutableName() + ":\n" + e.getMessage();
 				e.printStackTrace();
 				ok.set( false );
-				return null;
+				return false;
 			}
 			finally
 			{
 				process = null;
 			}
-			return tmpDir.toString();
+			return true;
 		}
 	}
 
-	private static final < T extends RealType< T > & NativeType< T > > List< ImagePlus > crop( final ImgPlus< T > img, final Interval interval, final Function< Long, String > nameGen )
+	/**
+	 * A group of frames sent to cellpose at once, and the folder in which they
+	 * are saved.
+	 */
+	private static final class Chunk
 	{
-		final int zIndex = img.dimensionIndex( Axes.Z );
-		final int cIndex = img.dimensionIndex( Axes.CHANNEL );
-		final Interval cropInterval;
-		if ( zIndex < 0 )
-		{
-			// 2D
-			if ( cIndex < 0 )
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ),
-						interval.max( 0 ), interval.max( 1 ) );
-			else
-				// Include all channels
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), img.min( cIndex ),
-						interval.max( 0 ), interval.max( 1 ), img.max( cIndex ) );
+
+		private static final Chunk END = new Chunk( Collections.emptyList(), null, 0l );
+
+		private final List< Frame > frames;
+
+		private final Path dir;
+
+		/**
+		 * The room reserved for this chunk in the scratch space.
+		 */
+		private final long reserved;
+
+		private Chunk( final List< Frame > frames, final Path dir, final long reserved )
+		{
+			this.frames = frames;
+			this.dir = dir;
+			this.reserved = reserved;
 		}
-		else
+
+		private List< Long > timepoints()
 		{
-			if ( cIndex < 0 )
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), interval.min( 2 ),
-						interval.max( 0 ), interval.max( 1 ), interval.max( 2 ) );
-			else
-				cropInterval = Intervals.createMinMax(
-						interval.min( 0 ), interval.min( 1 ), interval.min( 2 ), img.min( cIndex ),
-						interval.max( 0 ), interval.max( 1 ), interval.max( 2 ), img.max( cIndex ) );
+			final List< Long > timepoints = new ArrayList<>( frames.size() );
+			for ( final Frame frame : frames )
+				timepoints.add( frame.t );
+			return timepoints;
 		}
+	}
 
-		final List< ImagePlus > imps = new ArrayList<>();
+	/**
+	 * A frame to process: its time-point and the name of its files.
+	 */
+	private static final class Frame
+	{
+
+		private final long t;
+
+		private final String name;
+
+		private Frame( final long t, final String name )
+		{
+			this.t = t;
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Lists the frames of the interval to process. The list is a view: the
+	 * frames are created when they are asked for, so that long intervals do
+	 * not cost anything before they are exported, and the pixels are streamed
+	 * from the source image when the frames are exported.
+	 */
+	private static final List< Frame > listFrames( final ImgPlus< ? > img, final Interval interval, final Function< Long, String > nameGen )
+	{
 		final int timeIndex = img.dimensionIndex( Axes.TIME );
 		if ( timeIndex < 0 )
 		{
 			// No time.
-			final IntervalView< T > crop = Views.interval( img, cropInterval );
-			final String name = nameGen.apply( 0l ) + ".tif";
-			imps.add( ImageJFunctions.wrap( crop, name ) );
+			return new FrameRange( 0l, 1, nameGen );
 		}
-		else
+		// In the interval, time is always the last.
+		final long minT = interval.min( interval.numDimensions() - 1 );
+		final long maxT = interval.max( interval.numDimensions() - 1 );
+		return new FrameRange( minT, ( int ) ( maxT - minT + 1 ), nameGen );
+	}
+
+	/**
+	 * A range of consecutive frames, created on demand.
+	 */
+	private static final class FrameRange extends AbstractList< Frame > implements java.util.RandomAccess
+	{
+
+		private final long minT;
+
+		private final int size;
+
+		private final Function< Long, String > nameGen;
+
+		private FrameRange( final long minT, final int size, final Function< Long, String > nameGen )
 		{
-			// In the interval, time is always the last.
-			final long minT = interval.min( interval.numDimensions() - 1 );
-			final long maxT = interval.max( interval.numDimensions() - 1 );
-			for ( long t = minT; t <= maxT; t++ )
-			{
-				final ImgPlus< T > tp = ImgPlusViews.hyperSlice( img, timeIndex, t );
-				// possibly 2D or 3D with or without channel.
-				final IntervalView< T > crop = Views.interval( tp, cropInterval );
-				final String name = nameGen.apply( t ) + ".tif";
-				imps.add( ImageJFunctions.wrap( crop, name ) );
-			}
+			this.minT = minT;
+			this.size = size;
+			this.nameGen = nameGen;
+		}
+
+		@Override
+		public Frame get( final int index )
+		{
+			if ( index < 0 || index >= size )
+				throw new IndexOutOfBoundsException( "Index: " + index + ", size: " + size );
+			final long t = minT + index;
+			return new Frame( t, nameGen.apply( t ) );
+		}
+
+		@Override
+		public int size()
+		{
+			return size;
 		}
-		return imps;
+	}
+
+	/**
+	 * Estimates the scratch space used by one frame: the exported frame, with
+	 * at most the specified number of bytes per sample, and its 16-bit mask.
+	 */
+	private static final long bytesPerFrame( final Interval interval, final int nChannels, final int bytesPerSample )
+	{
+		final long xy = interval.dimension( 0 ) * interval.dimension( 1 );
+		return xy * ( ( long ) bytesPerSample * nChannels + 2 );
 	}
 }
@@ -26,7 +26,12 @@ import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELLPOS
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELLPOSE_PYTHON_FILEPATH;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_CELL_DIAMETER;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_LOGGER;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_MAX_AREA;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_MAX_VERTICES;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_MIN_AREA;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_OPTIONAL_CHANNEL_2;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_SIMPLIFICATION_METHOD;
+import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_SIMPLIFICATION_TOLERANCE;
 import static fiji.plugin.trackmate.cellpose.CellposeDetectorFactory.KEY_USE_GPU;
 import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
 import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
@@ -114,6 +119,12 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 
 	private final String executableName;
 
+	/**
+	 * The contour simplification and area settings, not edited in this panel
+	 * but kept so that they are not lost when the settings are edited.
+	 */
+	protected final Map< String, Object > optionalSettings = new HashMap<>( 5 );
+
 	public CellposeDetectorConfigurationPanel(
 			final Settings settings,
 			final Model model )
@@ -482,6 +493,7 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 		ftfDiameter.setValue( settings.get( KEY_CELL_DIAMETER ) );
 		chckbxUseGPU.setSelected( ( boolean ) settings.get( KEY_USE_GPU ) );
 		chckbxSimplify.setSelected( ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS ) );
+		storeOptionalSettings( settings );
 	}
 
 	@Override
@@ -500,12 +512,21 @@ public class CellposeDetectorConfigurationPanel extends ConfigurationPanel
 		settings.put( KEY_CELL_DIAMETER, diameter );
 		settings.put( KEY_SIMPLIFY_CONTOURS, chckbxSimplify.isSelected() );
 		settings.put( KEY_USE_GPU, chckbxUseGPU.isSelected() );
+		settings.putAll( optionalSettings );
 
 		settings.put( KEY_LOGGER, logger );
 
 		return settings;
 	}
 
+	protected void storeOptionalSettings( final Map< String, Object > settings )
+	{
+		optionalSettings.clear();
+		for ( final String key : Arrays.asList( KEY_SIMPLIFICATION_METHOD, KEY_SIMPLIFICATION_TOLERANCE, KEY_MAX_VERTICES, KEY_MIN_AREA, KEY_MAX_AREA ) )
+			if ( settings.containsKey( key ) )
+				optionalSettings.put( key, settings.get( key ) );
+	}
+
 	@Override
 	public void clean()
 	{}
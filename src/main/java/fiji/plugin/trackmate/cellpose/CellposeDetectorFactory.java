@@ -123,6 +123,53 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 
 	public static final Boolean DEFAULT_USE_GPU = Boolean.valueOf( true );
 
+	/**
+	 * The key to the parameter that stores the algorithm used to simplify the
+	 * contours, if they are simplified. Values are
+	 * {@link SimplificationMethod}s. Optional.
+	 */
+	public static final String KEY_SIMPLIFICATION_METHOD = "SIMPLIFICATION_METHOD";
+
+	public static final SimplificationMethod DEFAULT_SIMPLIFICATION_METHOD = SimplificationMethod.DOUGLAS_PEUCKER;
+
+	/**
+	 * The key to the parameter that stores the contour simplification
+	 * tolerance, in physical units, or 0 for one pixel. Values are
+	 * {@link Double}s. Optional.
+	 */
+	public static final String KEY_SIMPLIFICATION_TOLERANCE = "SIMPLIFICATION_TOLERANCE";
+
+	public static final Double DEFAULT_SIMPLIFICATION_TOLERANCE = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the maximal number of vertices of
+	 * the simplified contours, or 0 for no limit. Values are
+	 * {@link Integer}s. Optional.
+	 */
+	public static final String KEY_MAX_VERTICES = "MAX_VERTICES";
+
+	public static final Integer DEFAULT_MAX_VERTICES = Integer.valueOf( 0 );
+
+	/**
+	 * The key to the parameter that stores the minimal area of the objects to
+	 * keep, in physical units squared, or 0 for no limit. Smaller objects are
+	 * dropped before their spot is created. Values are {@link Double}s.
+	 * Optional.
+	 */
+	public static final String KEY_MIN_AREA = "MIN_AREA";
+
+	public static final Double DEFAULT_MIN_AREA = Double.valueOf( 0. );
+
+	/**
+	 * The key to the parameter that stores the maximal area of the objects to
+	 * keep, in physical units squared, or 0 for no limit. Larger objects are
+	 * dropped before their spot is created. Values are {@link Double}s.
+	 * Optional.
+	 */
+	public static final String KEY_MAX_AREA = "MAX_AREA";
+
+	public static final Double DEFAULT_MAX_AREA = Double.valueOf( 0. );
+
 	/**
 	 * The key to the parameter that stores the logger instance, to which
 	 * Cellpose messages wil be sent. Values must be implementing
@@ -204,6 +251,11 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				.diameter( diameter )
 				.useGPU( useGPU )
 				.simplifyContours( simplifyContours )
+				.simplificationMethod( ( SimplificationMethod ) settings.getOrDefault( KEY_SIMPLIFICATION_METHOD, DEFAULT_SIMPLIFICATION_METHOD ) )
+				.simplificationTolerance( ( ( Number ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE ) ).doubleValue() / calibration[ 0 ] )
+				.maxVertices( ( Integer ) settings.getOrDefault( KEY_MAX_VERTICES, DEFAULT_MAX_VERTICES ) )
+				.minArea( ( ( Number ) settings.getOrDefault( KEY_MIN_AREA, DEFAULT_MIN_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
+				.maxArea( ( ( Number ) settings.getOrDefault( KEY_MAX_AREA, DEFAULT_MAX_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
 				.get();
 
 		// Logger.
@@ -252,6 +304,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && writeAttribute( settings, element, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok && writeOptionalSettings( settings, element, errorHolder );
 
 		final PretrainedModelCellpose model = ( PretrainedModelCellpose ) settings.get( KEY_CELLPOSE_MODEL );
 		element.setAttribute( KEY_CELLPOSE_MODEL, model.name() );
@@ -275,6 +328,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readOptionalSettings( element, settings, errorHolder );
 
 		// Read model.
 		final String str = element.getAttributeValue( KEY_CELLPOSE_MODEL );
@@ -305,6 +359,11 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		settings.put( KEY_CELL_DIAMETER, DEFAULT_CELL_DIAMETER );
 		settings.put( KEY_USE_GPU, DEFAULT_USE_GPU );
 		settings.put( KEY_SIMPLIFY_CONTOURS, true );
+		settings.put( KEY_SIMPLIFICATION_METHOD, DEFAULT_SIMPLIFICATION_METHOD );
+		settings.put( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+		settings.put( KEY_MAX_VERTICES, DEFAULT_MAX_VERTICES );
+		settings.put( KEY_MIN_AREA, DEFAULT_MIN_AREA );
+		settings.put( KEY_MAX_AREA, DEFAULT_MAX_AREA );
 		settings.put( KEY_LOGGER, Logger.DEFAULT_LOGGER );
 		settings.put( KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH, DEFAULT_CELLPOSE_CUSTOM_MODEL_FILEPATH );
 		return settings;
@@ -323,6 +382,7 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkOptionalSettings( settings, errorHolder );
 
 		// If we have a logger, test it is of the right class.
 		final Object loggerObj = settings.get( KEY_LOGGER );
@@ -343,7 +403,12 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				KEY_SIMPLIFY_CONTOURS );
 		final List< String > optionalKeys = Arrays.asList(
 				KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH,
-				KEY_LOGGER );
+				KEY_LOGGER,
+				KEY_SIMPLIFICATION_METHOD,
+				KEY_SIMPLIFICATION_TOLERANCE,
+				KEY_MAX_VERTICES,
+				KEY_MIN_AREA,
+				KEY_MAX_AREA );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
@@ -368,6 +433,75 @@ public class CellposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		return ok;
 	}
 
+	/**
+	 * Writes the optional contour and area settings present in the map.
+	 */
+	protected static boolean writeOptionalSettings( final Map< String, Object > settings, final Element element, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		if ( settings.containsKey( KEY_SIMPLIFICATION_METHOD ) )
+			element.setAttribute( KEY_SIMPLIFICATION_METHOD, ( ( SimplificationMethod ) settings.get( KEY_SIMPLIFICATION_METHOD ) ).name() );
+		if ( settings.containsKey( KEY_SIMPLIFICATION_TOLERANCE ) )
+			ok = ok && writeAttribute( settings, element, KEY_SIMPLIFICATION_TOLERANCE, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_MAX_VERTICES ) )
+			ok = ok && writeAttribute( settings, element, KEY_MAX_VERTICES, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_MIN_AREA ) )
+			ok = ok && writeAttribute( settings, element, KEY_MIN_AREA, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_MAX_AREA ) )
+			ok = ok && writeAttribute( settings, element, KEY_MAX_AREA, Double.class, errorHolder );
+		return ok;
+	}
+
+	/**
+	 * Reads the optional contour and area settings present in the XML
+	 * element. Files saved before these settings existed do not have them.
+	 */
+	protected static boolean readOptionalSettings( final Element element, final Map< String, Object > settings, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		final String method = element.getAttributeValue( KEY_SIMPLIFICATION_METHOD );
+		if ( method != null )
+		{
+			try
+			{
+				settings.put( KEY_SIMPLIFICATION_METHOD, SimplificationMethod.valueOf( method ) );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				errorHolder.append( "Unknown contour simplification method: " + method + ".\n" );
+				ok = false;
+			}
+		}
+		if ( element.getAttributeValue( KEY_SIMPLIFICATION_TOLERANCE ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_SIMPLIFICATION_TOLERANCE, errorHolder );
+		if ( element.getAttributeValue( KEY_MAX_VERTICES ) != null )
+			ok = ok && readIntegerAttribute( element, settings, KEY_MAX_VERTICES, errorHolder );
+		if ( element.getAttributeValue( KEY_MIN_AREA ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_MIN_AREA, errorHolder );
+		if ( element.getAttributeValue( KEY_MAX_AREA ) != null )
+			ok = ok && readDoubleAttribute( element, settings, KEY_MAX_AREA, errorHolder );
+		return ok;
+	}
+
+	/**
+	 * Checks the optional contour and area settings present in the map.
+	 */
+	protected static boolean checkOptionalSettings( final Map< String, Object > settings, final StringBuilder errorHolder )
+	{
+		boolean ok = true;
+		if ( settings.containsKey( KEY_SIMPLIFICATION_METHOD ) )
+			ok = ok & checkParameter( settings, KEY_SIMPLIFICATION_METHOD, SimplificationMethod.class, errorHolder );
+		if ( settings.containsKey( KEY_SIMPLIFICATION_TOLERANCE ) )
+			ok = ok & checkParameter( settings, KEY_SIMPLIFICATION_TOLERANCE, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_MAX_VERTICES ) )
+			ok = ok & checkParameter( settings, KEY_MAX_VERTICES, Integer.class, errorHolder );
+		if ( settings.containsKey( KEY_MIN_AREA ) )
+			ok = ok & checkParameter( settings, KEY_MIN_AREA, Double.class, errorHolder );
+		if ( settings.containsKey( KEY_MAX_AREA ) )
+			ok = ok & checkParameter( settings, KEY_MAX_AREA, Double.class, errorHolder );
+		return ok;
+	}
+
 	@Override
 	public String getInfoText()
 	{
@@ -0,0 +1,237 @@
+package fiji.plugin.trackmate.cellpose;
+
+/**
+ * Deployment-level options of the cellpose and omnipose detectors.
+ * <p>
+ * These options do not change the segmentation results, only the way the
+ * detection is run on a given machine. They are therefore not part of the
+ * detector settings map and are not saved in the TrackMate file. They are read
+ * from Java system properties, so that they can be set once for a Fiji
+ * installation, for instance with
+ * <code>-Dtrackmate.cellpose.workers=false</code>.
+ */
+public class CellposePreferences
+{
+
+	private static final String PREFIX = "trackmate.cellpose.";
+
+	/**
+	 * Whether to run cellpose in persistent worker processes, reused across
+	 * detections. Only possible when the executable is a Python interpreter.
+	 */
+	public static final String WORKERS = PREFIX + "workers";
+
+	/**
+	 * How long, in seconds, an idle worker process is kept alive before being
+	 * shut down.
+	 */
+	public static final String WORKER_IDLE_TIMEOUT = PREFIX + "workers.idleTimeout";
+
+	/**
+	 * How long, in seconds, we wait for a new worker process to be ready before
+	 * giving up and falling back to the command line.
+	 */
+	public static final String WORKER_STARTUP_TIMEOUT = PREFIX + "workers.startupTimeout";
+
+	/**
+	 * The number of cellpose processes to run concurrently on the CPU. If not
+	 * set or 0, the number is tuned automatically on the first frames and
+	 * remembered per host, executable, model, GPU use and frame size.
+	 */
+	public static final String CONCURRENCY = PREFIX + "concurrency";
+
+	/**
+	 * Whether to ignore the number of concurrent processes tuned by previous
+	 * runs, and tune it again.
+	 */
+	public static final String CONCURRENCY_RETUNE = PREFIX + "concurrency.retune";
+
+	/**
+	 * The maximal number of frames sent to cellpose at once. Frames are
+	 * exported, segmented and converted chunk by chunk, so that the three
+	 * stages overlap and only a few chunks are on disk at any time. Chunks are
+	 * made smaller when needed to balance the load between concurrent
+	 * processes. If 0 or negative, chunks are only limited by load balancing.
+	 */
+	public static final String CHUNK_SIZE = PREFIX + "chunkSize";
+
+	/**
+	 * Whether to split the threads given to the detector between concurrent
+	 * cellpose processes, so that they do not compete for the same cores.
+	 */
+	public static final String THREAD_BUDGET = PREFIX + "threadBudget";
+
+	/**
+	 * Whether to also pin concurrent cellpose processes to disjoint sets of
+	 * CPUs. Linux only, requires <code>taskset</code>.
+	 */
+	public static final String AFFINITY = PREFIX + "affinity";
+
+	/**
+	 * Whether to keep the spots of a detection that did not complete, so that
+	 * a re-run with the same image and settings only processes the missing
+	 * frames. The spots of each frame are saved as soon as it is converted.
+	 */
+	public static final String CHECKPOINTS = PREFIX + "checkpoints";
+
+	/**
+	 * The folder in which frames and masks are exchanged with cellpose. If not
+	 * set, a RAM-backed file system such as <code>/dev/shm</code> is used when
+	 * there is one with enough room, and the default temp folder otherwise.
+	 */
+	public static final String SCRATCH_DIR = PREFIX + "scratch.dir";
+
+	/**
+	 * Whether to look for a RAM-backed file system for the scratch folder.
+	 */
+	public static final String SCRATCH_RAM = PREFIX + "scratch.ram";
+
+	/**
+	 * The maximal size, in MB, a detection may use in a RAM-backed or
+	 * configured scratch folder. If the estimated use is larger, we fall back
+	 * to the default temp folder. 0 means no limit other than the free space.
+	 */
+	public static final String SCRATCH_MAX_SIZE = PREFIX + "scratch.maxSize";
+
+	/**
+	 * The maximal size, in MB, of the frames and masks a detection may have
+	 * in the scratch folder at any time. When reached, frames are exported
+	 * only once the masks of previous frames were consumed and deleted. 0
+	 * means no quota.
+	 */
+	public static final String SCRATCH_QUOTA = PREFIX + "scratch.quota";
+
+	/**
+	 * The maximal number of masks decoded in memory at the same time. Each
+	 * mask is converted to spots and released as soon as it is written, so
+	 * the memory used for masks depends on this number and on the frame
+	 * size, not on the number of frames. If 0 or negative, one mask per
+	 * detector thread.
+	 */
+	public static final String MAX_MASKS_IN_MEMORY = PREFIX + "maxMasksInMemory";
+
+	/**
+	 * 8 or 16 to export sources with more bits per sample (32-bit float
+	 * images) as 8- or 16-bit images, rescaled from the 1st and 99th
+	 * percentiles of each plane. This cuts the scratch I/O. If 0, frames are
+	 * exported with their own type.
+	 */
+	public static final String EXPORT_BITS = PREFIX + "export.bits";
+
+	/**
+	 * Whether to compare, at the beginning of each run with a quantized
+	 * export, the masks of a sample frame to the ones of a float export, and
+	 * report how much they agree. On by default, so that quantizing never
+	 * changes the inputs of cellpose unnoticed. It costs one extra cellpose
+	 * run on two copies of that frame.
+	 */
+	public static final String EXPORT_CHECK = PREFIX + "export.check";
+
+	private CellposePreferences()
+	{}
+
+	public static boolean useWorkers()
+	{
+		return getBoolean( WORKERS, true );
+	}
+
+	public static long workerIdleTimeoutMillis()
+	{
+		return 1000l * getInt( WORKER_IDLE_TIMEOUT, 300 );
+	}
+
+	public static long workerStartupTimeoutMillis()
+	{
+		return 1000l * getInt( WORKER_STARTUP_TIMEOUT, 120 );
+	}
+
+	public static int concurrency()
+	{
+		return getInt( CONCURRENCY, 0 );
+	}
+
+	public static boolean retuneConcurrency()
+	{
+		return getBoolean( CONCURRENCY_RETUNE, false );
+	}
+
+	public static int chunkSize()
+	{
+		return getInt( CHUNK_SIZE, 32 );
+	}
+
+	public static boolean useThreadBudget()
+	{
+		return getBoolean( THREAD_BUDGET, true );
+	}
+
+	public static boolean useAffinity()
+	{
+		return getBoolean( AFFINITY, false );
+	}
+
+	public static boolean useCheckpoints()
+	{
+		return getBoolean( CHECKPOINTS, true );
+	}
+
+	public static String scratchDir()
+	{
+		final String str = System.getProperty( SCRATCH_DIR );
+		return ( str == null ) ? "" : str.trim();
+	}
+
+	public static boolean useRamScratch()
+	{
+		return getBoolean( SCRATCH_RAM, true );
+	}
+
+	public static long scratchMaxBytes()
+	{
+		return 1024l * 1024l * getInt( SCRATCH_MAX_SIZE, 0 );
+	}
+
+	public static long scratchQuotaBytes()
+	{
+		return 1024l * 1024l * getInt( SCRATCH_QUOTA, 0 );
+	}
+
+	public static int maxMasksInMemory()
+	{
+		return getInt( MAX_MASKS_IN_MEMORY, 0 );
+	}
+
+	public static int exportBits()
+	{
+		final int bits = getInt( EXPORT_BITS, 0 );
+		return ( bits == 8 || bits == 16 ) ? bits : 0;
+	}
+
+	public static boolean checkExport()
+	{
+		return getBoolean( EXPORT_CHECK, true );
+	}
+
+	static boolean getBoolean( final String key, final boolean defaultValue )
+	{
+		final String str = System.getProperty( key );
+		if ( str == null || str.trim().isEmpty() )
+			return defaultValue;
+		return Boolean.parseBoolean( str.trim() );
+	}
+
+	static int getInt( final String key, final int defaultValue )
+	{
+		final String str = System.getProperty( key );
+		if ( str == null )
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt( str.trim() );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultValue;
+		}
+	}
+}
@@ -37,6 +37,25 @@ public class CellposeSettings extends AbstractCellposeSettings
 		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
 	}
 
+	public CellposeSettings(
+			final String cellposePythonPath,
+			final PretrainedModelCellpose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final SimplificationMethod simplificationMethod,
+			final double simplificationTolerance,
+			final int maxVertices,
+			final double minArea,
+			final double maxArea )
+	{
+		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				simplificationMethod, simplificationTolerance, maxVertices, minArea, maxArea );
+	}
+
 	@Override
 	public String getExecutableName()
 	{
@@ -65,6 +84,16 @@ public class CellposeSettings extends AbstractCellposeSettings
 
 		protected boolean simplifyContours = true;
 
+		protected SimplificationMethod simplificationMethod = SimplificationMethod.DOUGLAS_PEUCKER;
+
+		protected double simplificationTolerance = 0.;
+
+		protected int maxVertices = 0;
+
+		protected double minArea = 0.;
+
+		protected double maxArea = 0.;
+
 		protected String customModelPath = "";
 
 		public Builder channel1( final int ch )
@@ -109,6 +138,36 @@ public class CellposeSettings extends AbstractCellposeSettings
 			return this;
 		}
 
+		public Builder simplificationMethod( final SimplificationMethod simplificationMethod )
+		{
+			this.simplificationMethod = simplificationMethod;
+			return this;
+		}
+
+		public Builder simplificationTolerance( final double simplificationTolerance )
+		{
+			this.simplificationTolerance = simplificationTolerance;
+			return this;
+		}
+
+		public Builder maxVertices( final int maxVertices )
+		{
+			this.maxVertices = maxVertices;
+			return this;
+		}
+
+		public Builder minArea( final double minArea )
+		{
+			this.minArea = minArea;
+			return this;
+		}
+
+		public Builder maxArea( final double maxArea )
+		{
+			this.maxArea = maxArea;
+			return this;
+		}
+
 		public Builder customModel( final String customModelPath )
 		{
 			this.customModelPath = customModelPath;
@@ -125,7 +184,12 @@ public class CellposeSettings extends AbstractCellposeSettings
 					chan2,
 					diameter,
 					useGPU,
-					simplifyContours );
+					simplifyContours,
+					simplificationMethod,
+					simplificationTolerance,
+					maxVertices,
+					minArea,
+					maxArea );
 		}
 	}
 
@@ -0,0 +1,230 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time and bytes spent in each stage of a cellpose detection, in total and
+ * per frame.
+ * <p>
+ * Stages run concurrently (export, inference and mask conversion overlap, and
+ * several processes may run at once), so the stage times are cumulated over
+ * threads and can add up to more than the wall-clock processing time. Compared
+ * to each other, they show where the time goes.
+ * <p>
+ * Instances are thread-safe.
+ */
+public class CellposeTimings
+{
+
+	/**
+	 * The stages of a detection.
+	 */
+	public enum Stage
+	{
+		/** Listing the frames to process. */
+		CROP( "Crop" ),
+		/** Writing the frames to disk for cellpose. */
+		EXPORT( "Export" ),
+		/** Comparing the quantized export to the float one on a sample frame. */
+		EXPORT_CHECK( "Export check" ),
+		/** Starting a cellpose process or acquiring a worker. */
+		SPAWN( "Process spawn" ),
+		/** Running cellpose. Per frame, the time of a batch is shared evenly. */
+		INFERENCE( "Inference" ),
+		/** Reading the masks written by cellpose. */
+		MASK_READ( "Mask read" ),
+		/** Converting the masks to spots. */
+		CONVERSION( "Mask to spots" );
+
+		private final String name;
+
+		private Stage( final String name )
+		{
+			this.name = name;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	private static final int N_STAGES = Stage.values().length;
+
+	private final AtomicLongArray times = new AtomicLongArray( N_STAGES );
+
+	private final AtomicLongArray bytes = new AtomicLongArray( N_STAGES );
+
+	private final AtomicLongArray counts = new AtomicLongArray( N_STAGES );
+
+	private final Map< Long, AtomicLongArray > frameTimes = new ConcurrentHashMap<>();
+
+	private volatile long wallTime;
+
+	/**
+	 * Records the time spent in a stage, not attributed to a frame.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @param nanos
+	 *            the duration, in nanoseconds.
+	 */
+	public void add( final Stage stage, final long nanos )
+	{
+		times.addAndGet( stage.ordinal(), nanos );
+		counts.incrementAndGet( stage.ordinal() );
+	}
+
+	/**
+	 * Records the time spent and the bytes processed in a stage for one frame.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @param frame
+	 *            the frame.
+	 * @param nanos
+	 *            the duration, in nanoseconds.
+	 * @param nBytes
+	 *            the number of bytes read or written, 0 if not relevant.
+	 */
+	public void add( final Stage stage, final long frame, final long nanos, final long nBytes )
+	{
+		add( stage, nanos );
+		bytes.addAndGet( stage.ordinal(), nBytes );
+		frameTimes.computeIfAbsent( frame, f -> new AtomicLongArray( N_STAGES ) ).addAndGet( stage.ordinal(), nanos );
+	}
+
+	/**
+	 * Records the time spent in a stage for a batch of frames. The time is
+	 * shared evenly between the frames.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @param frames
+	 *            the frames of the batch.
+	 * @param nanos
+	 *            the duration, in nanoseconds.
+	 */
+	public void add( final Stage stage, final List< Long > frames, final long nanos )
+	{
+		if ( frames.isEmpty() )
+			return;
+		final long share = nanos / frames.size();
+		for ( final Long frame : frames )
+			add( stage, frame, share, 0l );
+	}
+
+	void setWallTime( final long millis )
+	{
+		this.wallTime = millis;
+	}
+
+	/**
+	 * Returns the total time spent in a stage, cumulated over threads.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @return the time, in milliseconds.
+	 */
+	public double getTime( final Stage stage )
+	{
+		return times.get( stage.ordinal() ) / 1e6;
+	}
+
+	/**
+	 * Returns the number of bytes read or written in a stage.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @return the number of bytes.
+	 */
+	public long getBytes( final Stage stage )
+	{
+		return bytes.get( stage.ordinal() );
+	}
+
+	/**
+	 * Returns how many times a stage was run.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @return the count.
+	 */
+	public long getCount( final Stage stage )
+	{
+		return counts.get( stage.ordinal() );
+	}
+
+	/**
+	 * Returns the time spent in a stage for one frame.
+	 *
+	 * @param stage
+	 *            the stage.
+	 * @param frame
+	 *            the frame.
+	 * @return the time, in milliseconds, 0 if the frame was not processed.
+	 */
+	public double getTime( final Stage stage, final long frame )
+	{
+		final AtomicLongArray t = frameTimes.get( frame );
+		return ( t == null ) ? 0. : t.get( stage.ordinal() ) / 1e6;
+	}
+
+	/**
+	 * Returns the frames for which timings were recorded, sorted.
+	 *
+	 * @return the frames.
+	 */
+	public List< Long > getFrames()
+	{
+		final List< Long > frames = new ArrayList<>( frameTimes.keySet() );
+		Collections.sort( frames );
+		return frames;
+	}
+
+	/**
+	 * Returns the wall-clock time of the detection.
+	 *
+	 * @return the time, in milliseconds.
+	 */
+	public long getWallTime()
+	{
+		return wallTime;
+	}
+
+	/**
+	 * Returns a human-readable summary of the timings, one line per stage.
+	 *
+	 * @return the summary.
+	 */
+	public String summary()
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( String.format( Locale.US, "Timings: %.1f s wall-clock, %d frame(s).\n", wallTime / 1000., frameTimes.size() ) );
+		for ( final Stage stage : Stage.values() )
+		{
+			final long count = getCount( stage );
+			if ( count == 0 )
+				continue;
+			str.append( String.format( Locale.US, " - %-14s %9.1f s", stage + ":", getTime( stage ) / 1000. ) );
+			final long b = getBytes( stage );
+			if ( b > 0 )
+				str.append( String.format( Locale.US, ", %.1f MB", b / 1e6 ) );
+			str.append( '\n' );
+		}
+		return str.toString();
+	}
+
+	@Override
+	public String toString()
+	{
+		return summary();
+	}
+}
@@ -0,0 +1,531 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A pool of long-lived cellpose or omnipose worker processes.
+ * <p>
+ * Launching cellpose from the command line reloads the Python interpreter,
+ * PyTorch and the model weights every time, which costs several seconds before
+ * the first image is processed. The workers of this pool run a small Python
+ * script that imports cellpose once and then takes jobs over a line-based
+ * stdin / stdout protocol. Workers are keyed by executable, model, GPU use
+ * and thread budget, so that a worker is only reused for the same model and
+ * with the same thread limits. Idle workers are checked
+ * with a ping before being reused, and are shut down after a configurable idle
+ * time.
+ * <p>
+ * Workers are only possible when the executable is a Python interpreter. If a
+ * worker cannot be started or fails, the configuration is marked as
+ * unsupported for the session and callers are expected to fall back to the
+ * command line.
+ */
+public class CellposeWorkerPool
+{
+
+	private static final String WORKER_SCRIPT = "scripts/trackmate_cellpose_worker.py";
+
+	private static final long PING_TIMEOUT = 5000l;
+
+	/** Sentinel put in the reply queue when the worker output is closed. */
+	private static final String EOF = "\u0000EOF";
+
+	private static CellposeWorkerPool instance;
+
+	/**
+	 * The pools created in this JVM, shut down by a single shutdown hook.
+	 */
+	private static final Set< CellposeWorkerPool > POOLS = Collections.newSetFromMap( new WeakHashMap<>() );
+
+	private static boolean hookRegistered;
+
+	private static File workerScript;
+
+	private final Function< AbstractCellposeSettings, List< String > > launcher;
+
+	private final long idleTimeout;
+
+	private final long startupTimeout;
+
+	private final Map< String, Deque< Worker > > idle = new HashMap<>();
+
+	private final Set< Worker > all = new HashSet<>();
+
+	private final Set< String > unsupported = new HashSet<>();
+
+	private final ScheduledExecutorService evictor;
+
+	/**
+	 * Creates a worker pool.
+	 *
+	 * @param launcher
+	 *            a function that returns the command used to start a worker
+	 *            for given settings. This is where a stub worker can be plugged
+	 *            for testing.
+	 * @param idleTimeout
+	 *            the time in milliseconds after which an idle worker is shut
+	 *            down.
+	 * @param startupTimeout
+	 *            the time in milliseconds we wait for a new worker to be ready.
+	 */
+	public CellposeWorkerPool(
+			final Function< AbstractCellposeSettings, List< String > > launcher,
+			final long idleTimeout,
+			final long startupTimeout )
+	{
+		this.launcher = launcher;
+		this.idleTimeout = idleTimeout;
+		this.startupTimeout = startupTimeout;
+		this.evictor = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread t = new Thread( r, "TrackMate-CellposeWorkerPool-evictor" );
+			t.setDaemon( true );
+			return t;
+		} );
+		final long period = Math.max( 1000l, idleTimeout / 4 );
+		evictor.scheduleWithFixedDelay( this::evictIdle, period, period, TimeUnit.MILLISECONDS );
+		register( this );
+	}
+
+	private static synchronized void register( final CellposeWorkerPool pool )
+	{
+		POOLS.add( pool );
+		if ( hookRegistered )
+			return;
+		Runtime.getRuntime().addShutdownHook( new Thread( CellposeWorkerPool::shutdownAll, "TrackMate-CellposeWorkerPool-shutdown" ) );
+		hookRegistered = true;
+	}
+
+	private static void shutdownAll()
+	{
+		final List< CellposeWorkerPool > pools;
+		synchronized ( CellposeWorkerPool.class )
+		{
+			pools = new ArrayList<>( POOLS );
+		}
+		for ( final CellposeWorkerPool pool : pools )
+			pool.shutdown();
+	}
+
+	/**
+	 * Returns the shared pool, configured from {@link CellposePreferences}.
+	 *
+	 * @return the shared pool.
+	 */
+	public static synchronized CellposeWorkerPool get()
+	{
+		if ( instance == null )
+			instance = new CellposeWorkerPool(
+					CellposeWorkerPool::defaultLaunchCommand,
+					CellposePreferences.workerIdleTimeoutMillis(),
+					CellposePreferences.workerStartupTimeoutMillis() );
+		return instance;
+	}
+
+	/**
+	 * Returns <code>true</code> if workers can be used with the specified
+	 * settings.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @return whether workers are supported for these settings.
+	 */
+	public synchronized boolean supports( final AbstractCellposeSettings settings )
+	{
+		return settings.isPythonExecutable() && !unsupported.contains( key( settings ) );
+	}
+
+	/**
+	 * Marks the specified settings as not supported by workers, for the rest
+	 * of the session.
+	 *
+	 * @param settings
+	 *            the settings.
+	 */
+	public synchronized void markUnsupported( final AbstractCellposeSettings settings )
+	{
+		unsupported.add( key( settings ) );
+	}
+
+	/**
+	 * Returns a worker ready to take jobs for the specified settings. An idle
+	 * worker is reused if one is alive and answers a ping, otherwise a new one
+	 * is started.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @param budget
+	 *            the thread budget of the worker.
+	 * @return a worker.
+	 * @throws IOException
+	 *             if a new worker cannot be started or does not become ready
+	 *             in time.
+	 */
+	public Worker acquire( final AbstractCellposeSettings settings, final ThreadBudget budget ) throws IOException
+	{
+		final String key = key( settings ) + '|' + budget;
+		while ( true )
+		{
+			final Worker worker;
+			synchronized ( this )
+			{
+				final Deque< Worker > deque = idle.get( key );
+				worker = ( deque == null ) ? null : deque.pollFirst();
+			}
+			if ( worker == null )
+				break;
+			// Health check before reuse.
+			if ( worker.ping() )
+				return worker;
+			discard( worker );
+		}
+		return start( key, settings, budget );
+	}
+
+	/**
+	 * Gives a worker back to the pool, so that it can be reused.
+	 *
+	 * @param worker
+	 *            the worker.
+	 */
+	public void release( final Worker worker )
+	{
+		synchronized ( this )
+		{
+			if ( worker.isAlive() && all.contains( worker ) )
+			{
+				worker.lastUsed = System.currentTimeMillis();
+				idle.computeIfAbsent( worker.key, k -> new ArrayDeque<>() ).addFirst( worker );
+				return;
+			}
+		}
+		// Kill outside the lock, it may take a while.
+		discard( worker );
+	}
+
+	/**
+	 * Kills a worker and removes it from the pool.
+	 *
+	 * @param worker
+	 *            the worker.
+	 */
+	public void discard( final Worker worker )
+	{
+		synchronized ( this )
+		{
+			all.remove( worker );
+			final Deque< Worker > deque = idle.get( worker.key );
+			if ( deque != null )
+				deque.remove( worker );
+		}
+		worker.kill();
+	}
+
+	/**
+	 * Shuts down all the workers of this pool.
+	 */
+	public void shutdown()
+	{
+		final List< Worker > workers;
+		synchronized ( this )
+		{
+			workers = new ArrayList<>( all );
+			all.clear();
+			idle.clear();
+		}
+		for ( final Worker worker : workers )
+			worker.quit();
+	}
+
+	private void evictIdle()
+	{
+		final long now = System.currentTimeMillis();
+		final List< Worker > toEvict = new ArrayList<>();
+		synchronized ( this )
+		{
+			for ( final Deque< Worker > deque : idle.values() )
+			{
+				final Iterator< Worker > it = deque.iterator();
+				while ( it.hasNext() )
+				{
+					final Worker worker = it.next();
+					if ( now - worker.lastUsed > idleTimeout || !worker.isAlive() )
+					{
+						it.remove();
+						all.remove( worker );
+						toEvict.add( worker );
+					}
+				}
+			}
+		}
+		for ( final Worker worker : toEvict )
+			worker.quit();
+	}
+
+	private Worker start( final String key, final AbstractCellposeSettings settings, final ThreadBudget budget ) throws IOException
+	{
+		final ProcessBuilder pb = new ProcessBuilder( budget.wrap( launcher.apply( settings ) ) );
+		pb.redirectError( ProcessBuilder.Redirect.INHERIT );
+		pb.environment().put( "PYTHONUNBUFFERED", "1" );
+		budget.applyTo( pb );
+		final Worker worker = new Worker( key, pb.start() );
+		synchronized ( this )
+		{
+			all.add( worker );
+		}
+		final String reply = worker.await( startupTimeout );
+		if ( !"READY".equals( reply ) )
+		{
+			discard( worker );
+			throw new IOException( "Worker did not start properly"
+					+ ( ( reply == null ) ? " within " + ( startupTimeout / 1000 ) + " s." : ": " + reply ) );
+		}
+		return worker;
+	}
+
+	private static String key( final AbstractCellposeSettings settings )
+	{
+		return settings.executablePath + '|' + settings.getExecutableName() + '|' + settings.getModelPath() + '|' + settings.useGPU;
+	}
+
+	/**
+	 * Returns the command that starts the worker script bundled with this
+	 * plugin, with the Python interpreter of the specified settings.
+	 *
+	 * @param settings
+	 *            the settings.
+	 * @return the command.
+	 */
+	public static List< String > defaultLaunchCommand( final AbstractCellposeSettings settings )
+	{
+		try
+		{
+			return Arrays.asList(
+					settings.executablePath,
+					workerScript().getAbsolutePath(),
+					settings.getExecutableName() );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Could not extract the worker script.", e );
+		}
+	}
+
+	private static synchronized File workerScript() throws IOException
+	{
+		if ( workerScript == null || !workerScript.exists() )
+		{
+			final File file = File.createTempFile( "trackmate_cellpose_worker_", ".py" );
+			file.deleteOnExit();
+			try (InputStream is = CellposeUtils.getResource( WORKER_SCRIPT ).openStream())
+			{
+				Files.copy( is, file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+			}
+			workerScript = file;
+		}
+		return workerScript;
+	}
+
+	/**
+	 * A worker process, and the channels to talk to it.
+	 */
+	public static class Worker
+	{
+
+		private final String key;
+
+		private final Process process;
+
+		private final BufferedWriter in;
+
+		private final BlockingQueue< String > replies = new LinkedBlockingQueue<>();
+
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private Worker( final String key, final Process process )
+		{
+			this.key = key;
+			this.process = process;
+			this.in = new BufferedWriter( new OutputStreamWriter( process.getOutputStream(), StandardCharsets.UTF_8 ) );
+			final Thread reader = new Thread( () -> {
+				try (BufferedReader out = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ))
+				{
+					String line;
+					while ( ( line = out.readLine() ) != null )
+						replies.add( line );
+				}
+				catch ( final IOException e )
+				{
+					// Process is gone.
+				}
+				replies.add( EOF );
+			}, "TrackMate-CellposeWorker-reader" );
+			reader.setDaemon( true );
+			reader.start();
+		}
+
+		public boolean isAlive()
+		{
+			return process.isAlive();
+		}
+
+		/**
+		 * Returns the underlying process.
+		 *
+		 * @return the process.
+		 */
+		public Process getProcess()
+		{
+			return process;
+		}
+
+		/**
+		 * Checks that the worker is alive and responsive.
+		 *
+		 * @return <code>true</code> if the worker answered in time.
+		 */
+		boolean ping()
+		{
+			replies.clear();
+			return send( "PING" ) && "PONG".equals( await( PING_TIMEOUT ) );
+		}
+
+		/**
+		 * Runs cellpose on all the images of a folder, and waits for the job
+		 * to complete.
+		 *
+		 * @param args
+		 *            the cellpose arguments, as generated by
+		 *            {@link AbstractCellposeSettings#toCmdLine(String)} but
+		 *            without the executable part.
+		 * @return <code>null</code> if the job completed successfully, an
+		 *         error message otherwise.
+		 */
+		public String run( final List< String > args )
+		{
+			lastUsed = System.currentTimeMillis();
+			final List< String > items = new ArrayList<>( args.size() + 1 );
+			items.add( "RUN" );
+			items.addAll( args );
+			if ( !send( String.join( "\t", items ) ) )
+				return "Could not send job to worker.";
+
+			while ( true )
+			{
+				final String reply;
+				try
+				{
+					reply = replies.poll( 1, TimeUnit.SECONDS );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					return "Interrupted while waiting for worker.";
+				}
+				if ( reply == null )
+				{
+					if ( !process.isAlive() && replies.isEmpty() )
+						return "Worker died with exit code " + process.exitValue() + ".";
+					continue;
+				}
+				lastUsed = System.currentTimeMillis();
+				if ( reply.equals( "DONE" ) )
+					return null;
+				if ( reply.startsWith( "ERROR" ) )
+					return reply.substring( Math.min( reply.length(), 6 ) );
+				if ( reply.equals( EOF ) )
+					return "Worker output closed unexpectedly.";
+			}
+		}
+
+		private boolean send( final String line )
+		{
+			try
+			{
+				in.write( line );
+				in.newLine();
+				in.flush();
+				return true;
+			}
+			catch ( final IOException e )
+			{
+				return false;
+			}
+		}
+
+		private String await( final long timeout )
+		{
+			try
+			{
+				final String reply = replies.poll( timeout, TimeUnit.MILLISECONDS );
+				return EOF.equals( reply ) ? null : reply;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		private void quit()
+		{
+			send( "QUIT" );
+			try
+			{
+				if ( process.waitFor( 2, TimeUnit.SECONDS ) )
+					return;
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			kill();
+		}
+
+		void kill()
+		{
+			ProcessTree.kill( process, 0l );
+		}
+	}
+
+	/**
+	 * Returns the list of arguments to send to a worker, from a full cellpose
+	 * command line.
+	 *
+	 * @param cmd
+	 *            the command line, as generated by
+	 *            {@link AbstractCellposeSettings#toCmdLine(String)}.
+	 * @return the arguments, without the executable part.
+	 */
+	public static List< String > toWorkerArgs( final List< String > cmd )
+	{
+		final int start = cmd.indexOf( "--dir" );
+		return Collections.unmodifiableList( cmd.subList( Math.max( 0, start ), cmd.size() ) );
+	}
+}
@@ -0,0 +1,440 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Keeps the spots of a detection that did not complete, so that a re-run with
+ * the same image and settings only processes the missing frames.
+ * <p>
+ * The spots of each frame are saved as soon as its mask is converted, one
+ * small file per frame, so that they survive a crash of the JVM too. They are
+ * saved in a folder named after a cheap fingerprint of the source image, of
+ * the spatial part of the interval and of the cellpose and contour settings.
+ * The fingerprint of the image covers its name, source file, dimensions,
+ * calibration and pixels sampled in a few frames. Each spot file also holds a
+ * hash of pixels sampled in its frame, checked when a re-run resumes from it,
+ * so that the frames are only all sampled when there is something to resume.
+ * The time range is not part of the fingerprint, so changing it still reuses
+ * the spots of the frames in common. The folder is deleted once a detection
+ * completes for all its frames. Folders not used for {@value #MAX_AGE_DAYS}
+ * days are deleted when a new store is opened.
+ */
+public class CheckpointStore
+{
+
+	private static final int MAX_AGE_DAYS = 7;
+
+	private static final String DESCRIPTION_FILE = "fingerprint.txt";
+
+	private static final String SUFFIX = ".spots";
+
+	/**
+	 * Number of pixels sampled in a frame for the fingerprints.
+	 */
+	private static final int SAMPLES_PER_FRAME = 1024;
+
+	/**
+	 * Number of frames sampled for the fingerprint of the image.
+	 */
+	private static final int SAMPLED_FRAMES = 3;
+
+	private final ImgPlus< ? extends RealType< ? > > img;
+
+	private final Path dir;
+
+	private final String description;
+
+	private final Logger logger;
+
+	private volatile boolean described;
+
+	private CheckpointStore( final ImgPlus< ? extends RealType< ? > > img, final Path dir, final String description, final Logger logger )
+	{
+		this.img = img;
+		this.dir = dir;
+		this.description = description;
+		this.logger = logger;
+	}
+
+	/**
+	 * Opens the checkpoint store of a detection. Returns a store that keeps
+	 * nothing if checkpoints are disabled.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param interval
+	 *            the interval to process.
+	 * @param settings
+	 *            the cellpose settings.
+	 * @param logger
+	 *            a logger to report problems.
+	 * @return a checkpoint store.
+	 */
+	public static CheckpointStore open( final ImgPlus< ? extends RealType< ? > > img, final Interval interval, final AbstractCellposeSettings settings, final Logger logger )
+	{
+		if ( !CellposePreferences.useCheckpoints() )
+			return new CheckpointStore( img, null, null, logger );
+
+		final Path root = new File( new File( System.getProperty( "user.home" ), "." + settings.getExecutableName() ), "trackmate-checkpoints" ).toPath();
+		deleteStale( root );
+		final String description = describe( img, interval, settings );
+		return new CheckpointStore( img, root.resolve( hash( description ) ), description, logger );
+	}
+
+	/**
+	 * Returns the folder of the store.
+	 *
+	 * @return the folder, or <code>null</code> if checkpoints are disabled.
+	 */
+	public Path getDir()
+	{
+		return dir;
+	}
+
+	/**
+	 * Returns the spot files saved by a previous run, found with a single
+	 * scan of the store. Files whose frame changed since they were saved are
+	 * deleted and not returned.
+	 *
+	 * @return a map from frame to spot file.
+	 */
+	public Map< Long, File > getFrames()
+	{
+		if ( dir == null )
+			return Collections.emptyMap();
+		final File[] files = dir.toFile().listFiles( ( d, name ) -> name.endsWith( SUFFIX ) );
+		if ( files == null )
+			return Collections.emptyMap();
+		final Map< Long, File > frames = new HashMap<>( files.length );
+		for ( final File file : files )
+		{
+			final String name = file.getName();
+			final long frame;
+			try
+			{
+				frame = Long.parseLong( name.substring( 0, name.length() - SUFFIX.length() ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				// Not ours.
+				continue;
+			}
+			if ( isValid( file, frame ) )
+				frames.put( frame, file );
+			else
+				file.delete();
+		}
+		return frames;
+	}
+
+	/**
+	 * Checks that a frame has the same sampled pixels as when its spots were
+	 * saved.
+	 */
+	private boolean isValid( final File file, final long frame )
+	{
+		try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			return in.readUTF().equals( frameHash( frame ) );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Saves the spots of a frame. Can be called from several threads.
+	 *
+	 * @param frame
+	 *            the frame.
+	 * @param spots
+	 *            the spots of this frame.
+	 */
+	public void save( final long frame, final List< Spot > spots )
+	{
+		if ( dir == null )
+			return;
+		final Path target = dir.resolve( frame + SUFFIX );
+		final Path part = dir.resolve( frame + SUFFIX + ".part" );
+		try
+		{
+			if ( !described )
+				writeDescription();
+			// Resumed frames are already there.
+			if ( Files.exists( target ) )
+				return;
+
+			try (DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( part.toFile() ) ) ))
+			{
+				out.writeUTF( frameHash( frame ) );
+				out.writeInt( spots.size() );
+				for ( final Spot spot : spots )
+				{
+					final Map< String, Double > features = spot.getFeatures();
+					out.writeInt( features.size() );
+					for ( final Map.Entry< String, Double > feature : features.entrySet() )
+					{
+						out.writeUTF( feature.getKey() );
+						out.writeDouble( feature.getValue() == null ? Double.NaN : feature.getValue().doubleValue() );
+					}
+					final SpotRoi roi = spot.getRoi();
+					out.writeInt( ( roi == null ) ? -1 : roi.x.length );
+					if ( roi != null )
+						for ( int i = 0; i < roi.x.length; i++ )
+						{
+							out.writeDouble( roi.x[ i ] );
+							out.writeDouble( roi.y[ i ] );
+						}
+				}
+			}
+			// Never leave a half-written file under its final name.
+			Files.move( part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not checkpoint frame " + frame + ":\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	private synchronized void writeDescription() throws IOException
+	{
+		if ( described )
+			return;
+		// Also marks the folder as recently used.
+		Files.createDirectories( dir );
+		Files.write( dir.resolve( DESCRIPTION_FILE ), description.getBytes( StandardCharsets.UTF_8 ) );
+		described = true;
+	}
+
+	/**
+	 * Reads the spots of a frame saved by a previous run.
+	 *
+	 * @param file
+	 *            the spot file.
+	 * @return the spots.
+	 * @throws IOException
+	 *             if the file cannot be read.
+	 */
+	public static List< Spot > load( final File file ) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			in.readUTF(); // Frame hash, checked when listing the frames.
+			final int nSpots = in.readInt();
+			final List< Spot > spots = new ArrayList<>( nSpots );
+			final Map< String, Double > features = new HashMap<>();
+			for ( int i = 0; i < nSpots; i++ )
+			{
+				features.clear();
+				final int nFeatures = in.readInt();
+				for ( int f = 0; f < nFeatures; f++ )
+				{
+					final String key = in.readUTF();
+					features.put( key, Double.valueOf( in.readDouble() ) );
+				}
+				final Spot spot = new Spot(
+						features.getOrDefault( Spot.POSITION_X, 0. ),
+						features.getOrDefault( Spot.POSITION_Y, 0. ),
+						features.getOrDefault( Spot.POSITION_Z, 0. ),
+						features.getOrDefault( Spot.RADIUS, 1. ),
+						features.getOrDefault( Spot.QUALITY, 0. ) );
+				for ( final Map.Entry< String, Double > feature : features.entrySet() )
+					spot.putFeature( feature.getKey(), feature.getValue() );
+
+				final int nPoints = in.readInt();
+				if ( nPoints >= 0 )
+				{
+					final double[] x = new double[ nPoints ];
+					final double[] y = new double[ nPoints ];
+					for ( int p = 0; p < nPoints; p++ )
+					{
+						x[ p ] = in.readDouble();
+						y[ p ] = in.readDouble();
+					}
+					spot.setRoi( new SpotRoi( x, y ) );
+				}
+				spots.add( spot );
+			}
+			return spots;
+		}
+	}
+
+	/**
+	 * Deletes the store, once the detection completed.
+	 */
+	public void clear()
+	{
+		if ( dir == null || !Files.exists( dir ) )
+			return;
+		try
+		{
+			CellposeDetector.recursiveDelete( dir );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not delete the checkpoint folder " + dir + ":\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	private static String describe( final ImgPlus< ? extends RealType< ? > > img, final Interval interval, final AbstractCellposeSettings settings )
+	{
+		final StringBuilder str = new StringBuilder();
+		str.append( "image: " ).append( img.getName() ).append( '\n' );
+		str.append( "source: " ).append( img.getSource() ).append( '\n' );
+		final File source = ( img.getSource() == null ) ? null : new File( img.getSource() );
+		if ( source != null && source.isFile() )
+			str.append( String.format( Locale.US, "source file: %d bytes, modified %d\n", source.length(), source.lastModified() ) );
+		for ( int d = 0; d < img.numDimensions(); d++ )
+			str.append( String.format( Locale.US, "axis %d: %s, size %d, scale %g\n",
+					d, img.axis( d ).type().getLabel(), img.dimension( d ), img.averageScale( d ) ) );
+		// Unsaved images can share a name, and images can be edited.
+		str.append( "pixels: " ).append( samplePixels( img ) ).append( '\n' );
+
+		// Spatial part of the interval only, time is last.
+		final int nSpatial = ( img.dimensionIndex( Axes.TIME ) < 0 ) ? interval.numDimensions() : interval.numDimensions() - 1;
+		for ( int d = 0; d < nSpatial; d++ )
+			str.append( String.format( Locale.US, "interval %d: %d - %d\n", d, interval.min( d ), interval.max( d ) ) );
+
+		str.append( "command: " ).append( String.join( " ", settings.toCmdLine( "" ) ) ).append( '\n' );
+
+		// We keep spots, so how masks are converted matters too.
+		str.append( String.format( Locale.US, "contours: simplify %s, method %s, tolerance %g, max vertices %d\n",
+				settings.simplifyContours, settings.simplificationMethod, settings.simplificationTolerance, settings.maxVertices ) );
+		str.append( String.format( Locale.US, "area: %g - %g\n", settings.minArea, settings.maxArea ) );
+
+		// Quantized exports give slightly different masks.
+		final int exportBits = CellposePreferences.exportBits();
+		if ( exportBits > 0 )
+			str.append( "export bits: " ).append( exportBits ).append( '\n' );
+		return str.toString();
+	}
+
+	/**
+	 * Hashes the values of pixels sampled in the first, middle and last
+	 * frames. The other frames are checked when resuming from them.
+	 */
+	private static String samplePixels( final ImgPlus< ? extends RealType< ? > > img )
+	{
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final long nFrames = ( timeDim < 0 ) ? 1 : img.dimension( timeDim );
+		final long first = ( timeDim < 0 ) ? 0 : img.min( timeDim );
+		final MessageDigest digest = sha256();
+		final int n = ( int ) Math.min( nFrames, SAMPLED_FRAMES );
+		for ( int i = 0; i < n; i++ )
+		{
+			final long t = ( n == 1 ) ? first : first + i * ( nFrames - 1 ) / ( n - 1 );
+			sampleFrame( img, t, digest );
+		}
+		return hex( digest.digest() );
+	}
+
+	/**
+	 * Hashes the values of pixels sampled in one frame.
+	 */
+	private String frameHash( final long frame )
+	{
+		final MessageDigest digest = sha256();
+		sampleFrame( img, frame, digest );
+		return hex( digest.digest() );
+	}
+
+	/**
+	 * Adds to a digest the values of pixels sampled in a frame, at the same
+	 * positions in every frame.
+	 */
+	private static void sampleFrame( final ImgPlus< ? extends RealType< ? > > img, final long t, final MessageDigest digest )
+	{
+		final int timeDim = img.dimensionIndex( Axes.TIME );
+		final RandomAccess< ? extends RealType< ? > > ra = img.randomAccess();
+		final long[] position = new long[ img.numDimensions() ];
+		final ByteBuffer values = ByteBuffer.allocate( 8 * SAMPLES_PER_FRAME );
+		final Random random = new Random( 1l );
+		for ( int i = 0; i < SAMPLES_PER_FRAME; i++ )
+		{
+			for ( int d = 0; d < position.length; d++ )
+				position[ d ] = ( d == timeDim ) ? t
+						: img.min( d ) + ( long ) ( random.nextDouble() * img.dimension( d ) );
+			ra.setPosition( position );
+			values.putDouble( ra.get().getRealDouble() );
+		}
+		digest.update( values.array() );
+	}
+
+	private static String hash( final String str )
+	{
+		return hex( sha256().digest( str.getBytes( StandardCharsets.UTF_8 ) ) );
+	}
+
+	private static MessageDigest sha256()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-256" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			// Every JVM has SHA-256.
+			throw new RuntimeException( e );
+		}
+	}
+
+	private static String hex( final byte[] digest )
+	{
+		final StringBuilder hex = new StringBuilder();
+		for ( int i = 0; i < 16; i++ )
+			hex.append( String.format( "%02x", digest[ i ] ) );
+		return hex.toString();
+	}
+
+	private static void deleteStale( final Path root )
+	{
+		final File[] dirs = root.toFile().listFiles( File::isDirectory );
+		if ( dirs == null )
+			return;
+		final long limit = System.currentTimeMillis() - MAX_AGE_DAYS * 24l * 3600l * 1000l;
+		for ( final File d : dirs )
+		{
+			if ( new File( d, DESCRIPTION_FILE ).lastModified() >= limit )
+				continue;
+			try
+			{
+				CellposeDetector.recursiveDelete( d.toPath() );
+			}
+			catch ( final IOException e )
+			{
+				// Try again next time.
+			}
+		}
+	}
+}
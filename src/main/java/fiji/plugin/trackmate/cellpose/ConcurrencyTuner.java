@@ -0,0 +1,346 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * Picks the number of cellpose processes to run concurrently on the CPU by
+ * measuring the throughput.
+ * <p>
+ * Depending on the machine, one cellpose process can already use all the
+ * cores, or several processes running concurrently can give a strong speedup.
+ * Instead of guessing from the OS, the tuner runs the first frames of the
+ * movie with an increasing number of concurrent processes (1, 2, 4, ... up to
+ * the number of threads), measures the frames processed per second for each
+ * level, and stops when increasing the level does not improve the throughput
+ * anymore. The frames processed during tuning are real detections, so nothing
+ * is wasted.
+ * <p>
+ * The throughput of a trial is measured from the masks the processes produce,
+ * reported with {@link #maskProduced()}, once every process produced its
+ * first one. Process startup and model loading are not timed, so that they do
+ * not dominate small trials, and levels that reuse warm workers are not
+ * favored.
+ * <p>
+ * The chosen level is saved per host, executable, model, GPU use and frame
+ * size, in a properties file next to the cellpose log file, so that later
+ * runs start directly at the tuned value. Saved levels expire after
+ * {@value #MAX_AGE_DAYS} days, and can be discarded with the
+ * {@link CellposePreferences#CONCURRENCY_RETUNE} preference.
+ */
+public class ConcurrencyTuner
+{
+
+	/**
+	 * How many frames each process gets during a trial, in a single batch so
+	 * that each process is started once. The first one is not timed, it pays
+	 * for the process startup.
+	 */
+	private static final int FRAMES_PER_PROCESS = 4;
+
+	/**
+	 * Number of days after which a saved level is tuned again.
+	 */
+	private static final int MAX_AGE_DAYS = 30;
+
+	private static final String TIME_SUFFIX = ".time";
+
+	/**
+	 * Minimal relative gain in throughput required to try the next level.
+	 */
+	private static final double MIN_GAIN = 0.05;
+
+	private static final String FILE_NAME = "trackmate-concurrency.properties";
+
+	/**
+	 * Interface for the function that runs a trial.
+	 */
+	@FunctionalInterface
+	public interface TrialRunner
+	{
+
+		/**
+		 * Processes the frames in the specified range with the specified
+		 * number of concurrent processes, in batches of the specified size.
+		 *
+		 * @param from
+		 *            the index of the first frame to process, inclusive.
+		 * @param to
+		 *            the index of the last frame to process, exclusive.
+		 * @param level
+		 *            the number of concurrent processes.
+		 * @param batchSize
+		 *            the number of frames to give a process at once. The
+		 *            trials give one batch to each process.
+		 * @return <code>true</code> if processing went fine.
+		 */
+		boolean run( int from, int to, int level, int batchSize );
+	}
+
+	private final AbstractCellposeSettings settings;
+
+	private final int maxLevel;
+
+	private final String frameSize;
+
+	private final Logger logger;
+
+	private final File file;
+
+	private int framesUsed;
+
+	private boolean ok = true;
+
+	/**
+	 * When the masks of the current trial were produced, in ns, or
+	 * <code>null</code> if no trial runs.
+	 */
+	private List< Long > maskTimes;
+
+	/**
+	 * Creates a tuner.
+	 *
+	 * @param settings
+	 *            the cellpose settings.
+	 * @param maxLevel
+	 *            the maximal number of concurrent processes.
+	 * @param frameSize
+	 *            a description of the size of the frames, for instance
+	 *            <code>1024x502x3</code>.
+	 * @param logger
+	 *            the logger.
+	 */
+	public ConcurrencyTuner( final AbstractCellposeSettings settings, final int maxLevel, final String frameSize, final Logger logger )
+	{
+		this.settings = settings;
+		this.maxLevel = Math.max( 1, maxLevel );
+		this.frameSize = frameSize;
+		this.logger = logger;
+		this.file = new File( new File( System.getProperty( "user.home" ), "." + settings.getExecutableName() ), FILE_NAME );
+	}
+
+	/**
+	 * Returns <code>true</code> if there are enough frames to compare at least
+	 * two levels.
+	 *
+	 * @param nFrames
+	 *            the number of frames to process.
+	 * @return whether tuning is possible.
+	 */
+	public static boolean canTune( final int nFrames )
+	{
+		return nFrames >= 3 * FRAMES_PER_PROCESS;
+	}
+
+	/**
+	 * Returns the level saved for this configuration, or -1 if the tuning was
+	 * never done, was done more than {@value #MAX_AGE_DAYS} days ago, or if a
+	 * new tuning is requested. The value is capped to the max level.
+	 *
+	 * @return the saved level, or -1.
+	 */
+	public int getStoredLevel()
+	{
+		if ( CellposePreferences.retuneConcurrency() )
+			return -1;
+		final Properties props = load();
+		final String key = key();
+		final String str = props.getProperty( key );
+		if ( str == null )
+			return -1;
+		try
+		{
+			final long tuned = Long.parseLong( props.getProperty( key + TIME_SUFFIX, "0" ).trim() );
+			if ( System.currentTimeMillis() - tuned > MAX_AGE_DAYS * 24l * 3600l * 1000l )
+				return -1;
+			return Math.min( maxLevel, Math.max( 1, Integer.parseInt( str.trim() ) ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Runs trials on the first frames of a movie and returns the best level.
+	 * The best level is saved if the tuning could compare at least two levels.
+	 *
+	 * @param nFrames
+	 *            the total number of frames available.
+	 * @param runner
+	 *            the function that processes frames.
+	 * @return the best level found.
+	 */
+	public int tune( final int nFrames, final TrialRunner runner )
+	{
+		framesUsed = 0;
+		ok = true;
+		int bestLevel = 1;
+		double bestFps = -1.;
+		int nTrials = 0;
+		for ( final int level : candidateLevels() )
+		{
+			final int n = level * FRAMES_PER_PROCESS;
+			if ( framesUsed + n > nFrames )
+				break;
+
+			synchronized ( this )
+			{
+				maskTimes = new ArrayList<>( n );
+			}
+			final long start = System.nanoTime();
+			final boolean trialOk = runner.run( framesUsed, framesUsed + n, level, FRAMES_PER_PROCESS );
+			final long end = System.nanoTime();
+			final List< Long > times;
+			synchronized ( this )
+			{
+				times = maskTimes;
+				maskTimes = null;
+			}
+			framesUsed += n;
+			if ( !trialOk )
+			{
+				ok = false;
+				return bestLevel;
+			}
+			final double fps = throughput( times, level, n, end - start );
+			nTrials++;
+			logger.log( String.format( Locale.US, "Concurrency tuning: %d process(es) -> %.3f frames/s.\n", level, fps ) );
+
+			if ( fps < bestFps * ( 1. + MIN_GAIN ) )
+				break;
+			bestFps = fps;
+			bestLevel = level;
+		}
+
+		if ( nTrials > 1 )
+		{
+			logger.log( "Concurrency tuning: using " + bestLevel + " process(es) from now on.\n" );
+			store( bestLevel );
+		}
+		return bestLevel;
+	}
+
+	/**
+	 * Tells the tuner that a mask was produced. Called by the detection for
+	 * each mask, ignored outside trials.
+	 */
+	public synchronized void maskProduced()
+	{
+		if ( maskTimes != null )
+			maskTimes.add( System.nanoTime() );
+	}
+
+	/**
+	 * Returns the frames per second of a trial, counting the masks produced
+	 * after each process produced its first one. Falls back on the whole
+	 * trial if there are not enough masks.
+	 */
+	private static double throughput( final List< Long > times, final int level, final int n, final long duration )
+	{
+		if ( times.size() > level )
+		{
+			Collections.sort( times );
+			final long warm = times.get( level - 1 );
+			final long last = times.get( times.size() - 1 );
+			if ( last > warm )
+				return ( times.size() - level ) / ( ( last - warm ) / 1e9 );
+		}
+		return n / ( duration / 1e9 );
+	}
+
+	/**
+	 * Returns the number of frames processed during the last tuning.
+	 *
+	 * @return the number of frames.
+	 */
+	public int getFramesUsed()
+	{
+		return framesUsed;
+	}
+
+	/**
+	 * Returns <code>false</code> if a trial failed during the last tuning.
+	 *
+	 * @return whether trials went fine.
+	 */
+	public boolean isOk()
+	{
+		return ok;
+	}
+
+	private List< Integer > candidateLevels()
+	{
+		final List< Integer > levels = new ArrayList<>();
+		for ( int level = 1; level < maxLevel; level *= 2 )
+			levels.add( level );
+		levels.add( maxLevel );
+		return levels;
+	}
+
+	private void store( final int level )
+	{
+		final Properties props = load();
+		props.setProperty( key(), Integer.toString( level ) );
+		props.setProperty( key() + TIME_SUFFIX, Long.toString( System.currentTimeMillis() ) );
+		file.getParentFile().mkdirs();
+		try (OutputStream os = new FileOutputStream( file ))
+		{
+			props.store( os, "TrackMate-" + settings.getExecutableName() + " tuned number of concurrent processes, per host, executable, model, GPU use and frame size." );
+		}
+		catch ( final IOException e )
+		{
+			logger.log( "Could not save the tuned concurrency to " + file + ":\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	private Properties load()
+	{
+		final Properties props = new Properties();
+		if ( file.exists() )
+		{
+			try (InputStream is = new FileInputStream( file ))
+			{
+				props.load( is );
+			}
+			catch ( final IOException e )
+			{
+				// Start afresh.
+			}
+		}
+		return props;
+	}
+
+	private String key()
+	{
+		return hostName() + '|' + settings.executablePath + '|' + settings.getModelPath() + '|' + settings.useGPU + '|' + frameSize;
+	}
+
+	private static String hostName()
+	{
+		try
+		{
+			return InetAddress.getLocalHost().getHostName();
+		}
+		catch ( final IOException e )
+		{
+			final String name = System.getenv( "HOSTNAME" );
+			if ( name != null )
+				return name;
+			final String name2 = System.getenv( "COMPUTERNAME" );
+			return ( name2 == null ) ? "localhost" : name2;
+		}
+	}
+}
@@ -0,0 +1,769 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotRoi;
+
+/**
+ * Converts a 2D label image to polygon spots, one spot per label.
+ * <p>
+ * The label image is scanned once, and accumulators are updated for all the
+ * labels at the same time: area, bounding box, sums of the pixel coordinates
+ * and first pixel in raster order. Runs of pixels with the same label in a
+ * row update them once. Labels are mapped to dense indices with a hash table,
+ * so that the memory used depends on the number of objects, not on the
+ * values of their labels. The outer boundary of each label is then traced from
+ * its first pixel along the pixel edges, within its bounding box, following
+ * diagonal connections, which is the contour ImageJ finds for the label.
+ * Only the contours are visited after the scan, not the inside of the
+ * objects, so the cost is one pass over the image plus the length of the
+ * contours, however many labels there are. Holes are ignored, and so are
+ * other parts of a label that are not connected to its first pixel.
+ * <p>
+ * Like for the label image detector of TrackMate, spots are positioned at the
+ * centroid of their contour polygon, after simplification, and their radius
+ * is the one of a disk with the area of the polygon. Positions are in
+ * calibrated units, in the coordinates of the source image: the label image
+ * is offset by the origin given at construction, and the center of the first
+ * pixel of the source image is at 0. Their frame and time are set too, so
+ * that they need no further processing. Their quality is their area in
+ * pixels. The contours are optionally simplified, see
+ * {@link SimplificationMethod}, and their number of vertices optionally
+ * bounded.
+ * <p>
+ * Labels outside an optional area range are dropped as soon as the scan is
+ * done, before their contour is traced, so that small debris costs no more
+ * than the scan.
+ * <p>
+ * Instances reuse their buffers from one image to the next, and are not
+ * thread-safe. Use one instance per thread to convert frames in parallel.
+ */
+public class LabelToSpotConverter
+{
+
+	/**
+	 * Default simplification tolerance, in pixels. One pixel removes the
+	 * staircase of the pixel edges.
+	 */
+	private static final double DEFAULT_TOLERANCE = 1.;
+
+	/*
+	 * Directions along pixel edges: right, down, left, up. With Y pointing
+	 * down, turning right is the next direction.
+	 */
+
+	private static final int[] DX = { 1, 0, -1, 0 };
+
+	private static final int[] DY = { 0, 1, 0, -1 };
+
+	/*
+	 * Offsets, from a vertex, of the pixels ahead on the right and on the left
+	 * when moving in each direction. The pixel (x, y) has the vertex (x, y) as
+	 * top-left corner.
+	 */
+
+	private static final int[] RIGHT_X = { 0, -1, -1, 0 };
+
+	private static final int[] RIGHT_Y = { 0, 0, -1, -1 };
+
+	private static final int[] LEFT_X = { 0, 0, -1, -1 };
+
+	private static final int[] LEFT_Y = { -1, 0, 0, -1 };
+
+	private final double[] calibration;
+
+	private final double offsetX;
+
+	private final double offsetY;
+
+	private final double frameInterval;
+
+	/**
+	 * How to simplify the contours, or <code>null</code> to keep all their
+	 * vertices.
+	 */
+	private final SimplificationMethod method;
+
+	/**
+	 * Simplification tolerance, in pixels.
+	 */
+	private final double tolerance;
+
+	/**
+	 * Maximal number of vertices of the simplified contours, or 0 for no
+	 * limit.
+	 */
+	private final int maxVertices;
+
+	/**
+	 * Range of the areas of the labels to convert, in pixels. The others are
+	 * dropped after the scan, before their contour is traced.
+	 */
+	private final double minArea;
+
+	private final double maxArea;
+
+	/*
+	 * Open-addressing hash table from labels to the index of their object in
+	 * the image. Empty slots have the label 0.
+	 */
+
+	private int[] slotLabels = new int[ 128 ];
+
+	private int[] slotIndices = new int[ 128 ];
+
+	/** The number of objects found in the image. */
+	private int nFound;
+
+	/*
+	 * Accumulators, indexed by object, in order of first appearance. They are
+	 * initialized at the first pixel of each object.
+	 */
+
+	/** The label of each object. */
+	private int[] found = new int[ 64 ];
+
+	/** Area in pixels. */
+	private int[] areas = new int[ 64 ];
+
+	/** X and Y of the first pixel in raster order, also the top of the box. */
+	private int[] firstX = new int[ 64 ];
+
+	private int[] firstY = new int[ 64 ];
+
+	/** Bounding box, minimal Y is the one of the first pixel. */
+	private int[] minX = new int[ 64 ];
+
+	private int[] maxX = new int[ 64 ];
+
+	private int[] maxY = new int[ 64 ];
+
+	/** Sums of the pixel coordinates, for the centroids. */
+	private long[] sumX = new long[ 64 ];
+
+	private long[] sumY = new long[ 64 ];
+
+	/** Labels and indices of the objects, packed to sort them by label. */
+	private long[] order = new long[ 64 ];
+
+	private int[] xs = new int[ 64 ];
+
+	private int[] ys = new int[ 64 ];
+
+	private boolean[] keep = new boolean[ 64 ];
+
+	/*
+	 * Doubly-linked contour and min-heap of vertices, by triangle area, for
+	 * Visvalingam-Whyatt.
+	 */
+
+	private int[] prev = new int[ 64 ];
+
+	private int[] next = new int[ 64 ];
+
+	private int[] heap = new int[ 64 ];
+
+	private int[] heapPos = new int[ 64 ];
+
+	private double[] triangles = new double[ 64 ];
+
+	/**
+	 * Creates a converter.
+	 *
+	 * @param calibration
+	 *            the pixel sizes in X and Y.
+	 * @param originX
+	 *            the X of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param originY
+	 *            the Y of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param frameInterval
+	 *            the time between frames.
+	 * @param simplify
+	 *            whether to simplify the contours, with the Douglas-Peucker
+	 *            algorithm and a tolerance of one pixel.
+	 */
+	public LabelToSpotConverter( final double[] calibration, final long originX, final long originY, final double frameInterval, final boolean simplify )
+	{
+		this( calibration, originX, originY, frameInterval, simplify ? SimplificationMethod.DOUGLAS_PEUCKER : null, 0., 0 );
+	}
+
+	/**
+	 * Creates a converter.
+	 *
+	 * @param calibration
+	 *            the pixel sizes in X and Y.
+	 * @param originX
+	 *            the X of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param originY
+	 *            the Y of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param frameInterval
+	 *            the time between frames.
+	 * @param method
+	 *            how to simplify the contours, or <code>null</code> to keep
+	 *            all their vertices.
+	 * @param tolerance
+	 *            the simplification tolerance, in pixels, or 0 for one pixel.
+	 * @param maxVertices
+	 *            the maximal number of vertices of the simplified contours, or
+	 *            0 for no limit. Ignored if the contours are not simplified.
+	 */
+	public LabelToSpotConverter( final double[] calibration, final long originX, final long originY, final double frameInterval,
+			final SimplificationMethod method, final double tolerance, final int maxVertices )
+	{
+		this( calibration, originX, originY, frameInterval, method, tolerance, maxVertices, 0., 0. );
+	}
+
+	/**
+	 * Creates a converter that drops the labels outside an area range.
+	 *
+	 * @param calibration
+	 *            the pixel sizes in X and Y.
+	 * @param originX
+	 *            the X of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param originY
+	 *            the Y of the first pixel of the label images in the source
+	 *            image, in pixels.
+	 * @param frameInterval
+	 *            the time between frames.
+	 * @param method
+	 *            how to simplify the contours, or <code>null</code> to keep
+	 *            all their vertices.
+	 * @param tolerance
+	 *            the simplification tolerance, in pixels, or 0 for one pixel.
+	 * @param maxVertices
+	 *            the maximal number of vertices of the simplified contours, or
+	 *            0 for no limit. Ignored if the contours are not simplified.
+	 * @param minArea
+	 *            the minimal area of the labels to convert, in pixels, or 0
+	 *            for no limit.
+	 * @param maxArea
+	 *            the maximal area of the labels to convert, in pixels, or 0
+	 *            for no limit.
+	 */
+	public LabelToSpotConverter( final double[] calibration, final long originX, final long originY, final double frameInterval,
+			final SimplificationMethod method, final double tolerance, final int maxVertices,
+			final double minArea, final double maxArea )
+	{
+		this.calibration = calibration;
+		this.offsetX = originX * calibration[ 0 ];
+		this.offsetY = originY * calibration[ 1 ];
+		this.frameInterval = frameInterval;
+		this.method = method;
+		this.tolerance = ( tolerance > 0. ) ? tolerance : DEFAULT_TOLERANCE;
+		this.maxVertices = ( maxVertices > 0 ) ? Math.max( 3, maxVertices ) : 0;
+		this.minArea = ( minArea > 0. ) ? minArea : 0.;
+		this.maxArea = ( maxArea > 0. ) ? maxArea : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Converts a label image to spots.
+	 *
+	 * @param labels
+	 *            the labels, in raster order, 0 for the background. Negative
+	 *            values are ignored.
+	 * @param width
+	 *            the width of the image.
+	 * @param height
+	 *            the height of the image.
+	 * @param frame
+	 *            the frame of the image.
+	 * @return a new list of spots, in the order of their labels.
+	 */
+	public List< Spot > convert( final int[] labels, final int width, final int height, final long frame )
+	{
+		/*
+		 * One pass over the image, for all the labels.
+		 */
+
+		nFound = 0;
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = y * width;
+			int x = 0;
+			while ( x < width )
+			{
+				// Runs of the same label update the accumulators once.
+				final int label = labels[ row + x ];
+				final int start = x;
+				while ( ++x < width && labels[ row + x ] == label )
+					;
+				if ( label <= 0 )
+					continue;
+
+				final int end = x - 1;
+				final int length = x - start;
+				int k = indexOf( label );
+				if ( k < 0 )
+				{
+					k = add( label );
+					areas[ k ] = 0;
+					firstX[ k ] = start;
+					firstY[ k ] = y;
+					minX[ k ] = start;
+					maxX[ k ] = end;
+					sumX[ k ] = 0l;
+					sumY[ k ] = 0l;
+				}
+				else
+				{
+					if ( start < minX[ k ] )
+						minX[ k ] = start;
+					if ( end > maxX[ k ] )
+						maxX[ k ] = end;
+				}
+				areas[ k ] += length;
+				maxY[ k ] = y;
+				sumX[ k ] += ( long ) ( start + end ) * length / 2;
+				sumY[ k ] += ( long ) y * length;
+			}
+		}
+		Arrays.fill( slotLabels, 0 );
+
+		/*
+		 * Build the spots from the accumulators and the contours, for the
+		 * labels in the area range.
+		 */
+
+		for ( int k = 0; k < nFound; k++ )
+			order[ k ] = ( ( long ) found[ k ] << 32 ) | k;
+		Arrays.sort( order, 0, nFound );
+		final Double frameFeature = Double.valueOf( frame );
+		final Double timeFeature = Double.valueOf( frame * frameInterval );
+		final List< Spot > spots = new ArrayList<>( nFound );
+		for ( int i = 0; i < nFound; i++ )
+		{
+			final int k = ( int ) order[ i ];
+			final int area = areas[ k ];
+			if ( area < minArea || area > maxArea )
+				continue;
+
+			int nPoints = trace( labels, width, found[ k ], k );
+			if ( method != null && nPoints > 4 )
+				nPoints = simplify( nPoints );
+			final Spot spot = toSpot( k, area, nPoints );
+			spot.putFeature( Spot.FRAME, frameFeature );
+			spot.putFeature( Spot.POSITION_T, timeFeature );
+			spots.add( spot );
+		}
+		return spots;
+	}
+
+	/**
+	 * Traces the outer boundary of a label, keeping the label on the right,
+	 * from the top-left corner of its first pixel. Stores the vertices where
+	 * the direction changes in {@link #xs} and {@link #ys}.
+	 *
+	 * @return the number of vertices.
+	 */
+	private int trace( final int[] labels, final int width, final int label, final int k )
+	{
+		final int x0 = firstX[ k ];
+		final int y0 = firstY[ k ];
+		int nPoints = 0;
+		int x = x0;
+		int y = y0;
+		int d = 0;
+		do
+		{
+			x += DX[ d ];
+			y += DY[ d ];
+			final int next;
+			if ( inside( labels, width, label, k, x + LEFT_X[ d ], y + LEFT_Y[ d ] ) )
+				next = ( d + 3 ) & 3;
+			else if ( inside( labels, width, label, k, x + RIGHT_X[ d ], y + RIGHT_Y[ d ] ) )
+				next = d;
+			else
+				next = ( d + 1 ) & 3;
+			if ( next != d )
+			{
+				if ( nPoints == xs.length )
+				{
+					xs = Arrays.copyOf( xs, 2 * nPoints );
+					ys = Arrays.copyOf( ys, 2 * nPoints );
+				}
+				xs[ nPoints ] = x;
+				ys[ nPoints ] = y;
+				nPoints++;
+			}
+			d = next;
+		}
+		while ( x != x0 || y != y0 || d != 0 );
+		return nPoints;
+	}
+
+	/**
+	 * Returns whether a pixel has the specified label, of the object k. Pixels
+	 * out of the bounding box of the object, and so out of the image, do not.
+	 */
+	private boolean inside( final int[] labels, final int width, final int label, final int k, final int x, final int y )
+	{
+		return x >= minX[ k ] && x <= maxX[ k ] && y >= firstY[ k ] && y <= maxY[ k ]
+				&& labels[ x + y * width ] == label;
+	}
+
+	/**
+	 * Simplifies the closed contour in {@link #xs} and {@link #ys}, in place,
+	 * and bounds its number of vertices.
+	 *
+	 * @return the number of vertices kept.
+	 */
+	private int simplify( final int nPoints )
+	{
+		int n = nPoints;
+		if ( method == SimplificationMethod.DOUGLAS_PEUCKER )
+			n = douglasPeucker( n );
+		if ( method == SimplificationMethod.VISVALINGAM_WHYATT )
+			n = visvalingamWhyatt( n, tolerance * tolerance );
+		else if ( maxVertices > 0 && n > maxVertices )
+			n = visvalingamWhyatt( n, 0. );
+		return n;
+	}
+
+	/**
+	 * Simplifies the closed contour in {@link #xs} and {@link #ys} with the
+	 * Douglas-Peucker algorithm, in place.
+	 *
+	 * @return the number of vertices kept.
+	 */
+	private int douglasPeucker( final int nPoints )
+	{
+		if ( keep.length < nPoints )
+			keep = new boolean[ xs.length ];
+		Arrays.fill( keep, 0, nPoints, false );
+
+		// Split the closed contour at its first vertex and the farthest one.
+		int far = 0;
+		long farDist = -1;
+		for ( int i = 1; i < nPoints; i++ )
+		{
+			final long dx = xs[ i ] - xs[ 0 ];
+			final long dy = ys[ i ] - ys[ 0 ];
+			final long dist = dx * dx + dy * dy;
+			if ( dist > farDist )
+			{
+				farDist = dist;
+				far = i;
+			}
+		}
+		keep[ 0 ] = true;
+		keep[ far ] = true;
+		douglasPeucker( 0, far, nPoints );
+		douglasPeucker( far, nPoints, nPoints );
+
+		int k = 0;
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			if ( keep[ i ] )
+			{
+				xs[ k ] = xs[ i ];
+				ys[ k ] = ys[ i ];
+				k++;
+			}
+		}
+		return k;
+	}
+
+	/**
+	 * Marks the vertices to keep between two vertices, excluded. The index
+	 * <code>to</code> may be the number of vertices, for the first vertex.
+	 */
+	private void douglasPeucker( final int from, final int to, final int nPoints )
+	{
+		if ( to - from < 2 )
+			return;
+		final int end = ( to == nPoints ) ? 0 : to;
+		final double ax = xs[ from ];
+		final double ay = ys[ from ];
+		final double bx = xs[ end ];
+		final double by = ys[ end ];
+		final double dx = bx - ax;
+		final double dy = by - ay;
+		final double length = Math.sqrt( dx * dx + dy * dy );
+		int worst = -1;
+		double worstDist = tolerance;
+		for ( int i = from + 1; i < to; i++ )
+		{
+			final double px = xs[ i ] - ax;
+			final double py = ys[ i ] - ay;
+			final double dist = ( length == 0. ) ? Math.sqrt( px * px + py * py ) : Math.abs( px * dy - py * dx ) / length;
+			if ( dist > worstDist )
+			{
+				worstDist = dist;
+				worst = i;
+			}
+		}
+		if ( worst < 0 )
+			return;
+		keep[ worst ] = true;
+		douglasPeucker( from, worst, nPoints );
+		douglasPeucker( worst, to, nPoints );
+	}
+
+	/**
+	 * Simplifies the closed contour in {@link #xs} and {@link #ys} with the
+	 * Visvalingam-Whyatt algorithm, in place: removes the vertex that makes
+	 * the smallest triangle with its neighbors, as long as this triangle is
+	 * smaller than the specified area or there are more vertices than the
+	 * maximal number.
+	 *
+	 * @return the number of vertices kept.
+	 */
+	private int visvalingamWhyatt( final int nPoints, final double minArea )
+	{
+		if ( heap.length < nPoints )
+		{
+			final int size = xs.length;
+			prev = new int[ size ];
+			next = new int[ size ];
+			heap = new int[ size ];
+			heapPos = new int[ size ];
+			triangles = new double[ size ];
+		}
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			prev[ i ] = ( i == 0 ) ? nPoints - 1 : i - 1;
+			next[ i ] = ( i == nPoints - 1 ) ? 0 : i + 1;
+		}
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			triangles[ i ] = triangle( prev[ i ], i, next[ i ] );
+			heap[ i ] = i;
+			heapPos[ i ] = i;
+		}
+		for ( int k = nPoints / 2 - 1; k >= 0; k-- )
+			siftDown( k, nPoints );
+
+		int n = nPoints;
+		while ( n > 3 )
+		{
+			final int i = heap[ 0 ];
+			final double area = triangles[ i ];
+			if ( area >= minArea && ( maxVertices == 0 || n <= maxVertices ) )
+				break;
+
+			// Remove the vertex.
+			heapPos[ i ] = -1;
+			n--;
+			heap[ 0 ] = heap[ n ];
+			heapPos[ heap[ 0 ] ] = 0;
+			siftDown( 0, n );
+			final int p = prev[ i ];
+			final int q = next[ i ];
+			next[ p ] = q;
+			prev[ q ] = p;
+
+			// Neighbors never get a smaller area than the vertex removed.
+			update( p, Math.max( area, triangle( prev[ p ], p, q ) ), n );
+			update( q, Math.max( area, triangle( p, q, next[ q ] ) ), n );
+		}
+
+		int k = 0;
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			if ( heapPos[ i ] >= 0 )
+			{
+				xs[ k ] = xs[ i ];
+				ys[ k ] = ys[ i ];
+				k++;
+			}
+		}
+		return k;
+	}
+
+	private double triangle( final int a, final int b, final int c )
+	{
+		final double abx = xs[ b ] - xs[ a ];
+		final double aby = ys[ b ] - ys[ a ];
+		final double acx = xs[ c ] - xs[ a ];
+		final double acy = ys[ c ] - ys[ a ];
+		return 0.5 * Math.abs( abx * acy - aby * acx );
+	}
+
+	private void update( final int i, final double area, final int size )
+	{
+		final double old = triangles[ i ];
+		triangles[ i ] = area;
+		if ( area < old )
+			siftUp( heapPos[ i ] );
+		else
+			siftDown( heapPos[ i ], size );
+	}
+
+	private void siftUp( int k )
+	{
+		final int i = heap[ k ];
+		while ( k > 0 )
+		{
+			final int parent = ( k - 1 ) >> 1;
+			if ( triangles[ heap[ parent ] ] <= triangles[ i ] )
+				break;
+			heap[ k ] = heap[ parent ];
+			heapPos[ heap[ k ] ] = k;
+			k = parent;
+		}
+		heap[ k ] = i;
+		heapPos[ i ] = k;
+	}
+
+	private void siftDown( int k, final int size )
+	{
+		final int i = heap[ k ];
+		while ( true )
+		{
+			int child = 2 * k + 1;
+			if ( child >= size )
+				break;
+			if ( child + 1 < size && triangles[ heap[ child + 1 ] ] < triangles[ heap[ child ] ] )
+				child++;
+			if ( triangles[ heap[ child ] ] >= triangles[ i ] )
+				break;
+			heap[ k ] = heap[ child ];
+			heapPos[ heap[ k ] ] = k;
+			k = child;
+		}
+		heap[ k ] = i;
+		heapPos[ i ] = k;
+	}
+
+	/**
+	 * Makes a spot from the accumulators of the object k and its contour in
+	 * {@link #xs} and {@link #ys}.
+	 */
+	private Spot toSpot( final int k, final int area, final int nPoints )
+	{
+		/*
+		 * Centroid and area of the polygon, in pixels, relative to its first
+		 * vertex for accuracy. Pixel centers are at integer coordinates.
+		 */
+		double a2 = 0.;
+		double cx = 0.;
+		double cy = 0.;
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			final int j = ( i + 1 == nPoints ) ? 0 : i + 1;
+			final double xi = xs[ i ] - xs[ 0 ];
+			final double yi = ys[ i ] - ys[ 0 ];
+			final double xj = xs[ j ] - xs[ 0 ];
+			final double yj = ys[ j ] - ys[ 0 ];
+			final double cross = xi * yj - xj * yi;
+			a2 += cross;
+			cx += ( xi + xj ) * cross;
+			cy += ( yi + yj ) * cross;
+		}
+		final double x;
+		final double y;
+		final double polygonArea;
+		if ( Math.abs( a2 ) > 1e-9 )
+		{
+			x = calibration[ 0 ] * ( xs[ 0 ] - 0.5 + cx / ( 3. * a2 ) );
+			y = calibration[ 1 ] * ( ys[ 0 ] - 0.5 + cy / ( 3. * a2 ) );
+			polygonArea = Math.abs( a2 ) / 2.;
+		}
+		else
+		{
+			// Flat polygon, left by a strong simplification: use the pixels.
+			x = calibration[ 0 ] * sumX[ k ] / area;
+			y = calibration[ 1 ] * sumY[ k ] / area;
+			polygonArea = area;
+		}
+
+		// Relative to the centroid.
+		final double[] px = new double[ nPoints ];
+		final double[] py = new double[ nPoints ];
+		for ( int i = 0; i < nPoints; i++ )
+		{
+			px[ i ] = ( xs[ i ] - 0.5 ) * calibration[ 0 ] - x;
+			py[ i ] = ( ys[ i ] - 0.5 ) * calibration[ 1 ] - y;
+		}
+
+		final double radius = Math.sqrt( polygonArea * calibration[ 0 ] * calibration[ 1 ] / Math.PI );
+		final Spot spot = new Spot( offsetX + x, offsetY + y, 0., radius, area );
+		spot.setRoi( new SpotRoi( px, py ) );
+		return spot;
+	}
+
+	/**
+	 * Returns the index of the object with the specified label, or -1 if it
+	 * was not found yet in the image.
+	 */
+	private int indexOf( final int label )
+	{
+		final int mask = slotLabels.length - 1;
+		int slot = hash( label ) & mask;
+		while ( true )
+		{
+			final int l = slotLabels[ slot ];
+			if ( l == label )
+				return slotIndices[ slot ];
+			if ( l == 0 )
+				return -1;
+			slot = ( slot + 1 ) & mask;
+		}
+	}
+
+	/**
+	 * Adds a new object with the specified label, and returns its index. The
+	 * table is kept at most half full.
+	 */
+	private int add( final int label )
+	{
+		if ( nFound == found.length )
+			grow();
+		if ( 2 * ( nFound + 1 ) > slotLabels.length )
+			rehash( 2 * slotLabels.length );
+		final int k = nFound++;
+		found[ k ] = label;
+		put( label, k );
+		return k;
+	}
+
+	private void put( final int label, final int k )
+	{
+		final int mask = slotLabels.length - 1;
+		int slot = hash( label ) & mask;
+		while ( slotLabels[ slot ] != 0 )
+			slot = ( slot + 1 ) & mask;
+		slotLabels[ slot ] = label;
+		slotIndices[ slot ] = k;
+	}
+
+	private void rehash( final int capacity )
+	{
+		slotLabels = new int[ capacity ];
+		slotIndices = new int[ capacity ];
+		for ( int k = 0; k < nFound; k++ )
+			put( found[ k ], k );
+	}
+
+	/**
+	 * Spreads the bits of consecutive labels over the table.
+	 */
+	private static int hash( final int label )
+	{
+		final int h = label * 0x9e3779b9;
+		return h ^ ( h >>> 16 );
+	}
+
+	private void grow()
+	{
+		final int size = 2 * found.length;
+		found = Arrays.copyOf( found, size );
+		areas = Arrays.copyOf( areas, size );
+		firstX = Arrays.copyOf( firstX, size );
+		firstY = Arrays.copyOf( firstY, size );
+		minX = Arrays.copyOf( minX, size );
+		maxX = Arrays.copyOf( maxX, size );
+		maxY = Arrays.copyOf( maxY, size );
+		sumX = Arrays.copyOf( sumX, size );
+		sumY = Arrays.copyOf( sumY, size );
+		order = Arrays.copyOf( order, size );
+	}
+}
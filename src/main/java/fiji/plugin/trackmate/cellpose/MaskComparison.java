@@ -0,0 +1,98 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares two label images of the same size, object by object. Each object
+ * of the reference is matched with the object of the other image it overlaps
+ * best, in the sense of the intersection over union (IoU).
+ */
+class MaskComparison
+{
+
+	private final int nReference;
+
+	private final int nOther;
+
+	private final double meanIoU;
+
+	private final int nMatched;
+
+	private MaskComparison( final int nReference, final int nOther, final double meanIoU, final int nMatched )
+	{
+		this.nReference = nReference;
+		this.nOther = nOther;
+		this.meanIoU = meanIoU;
+		this.nMatched = nMatched;
+	}
+
+	/**
+	 * Compares two label images.
+	 *
+	 * @param reference
+	 *            the reference labels, 0 for background.
+	 * @param other
+	 *            the labels to compare, with as many pixels.
+	 * @return the comparison.
+	 */
+	static MaskComparison compare( final int[] reference, final int[] other )
+	{
+		final Map< Integer, Integer > refAreas = new HashMap<>();
+		final Map< Integer, Integer > otherAreas = new HashMap<>();
+		final Map< Long, Integer > overlaps = new HashMap<>();
+		final int n = Math.min( reference.length, other.length );
+		for ( int i = 0; i < n; i++ )
+		{
+			final int a = reference[ i ];
+			final int b = other[ i ];
+			if ( a != 0 )
+				refAreas.merge( a, 1, Integer::sum );
+			if ( b != 0 )
+				otherAreas.merge( b, 1, Integer::sum );
+			if ( a != 0 && b != 0 )
+				overlaps.merge( ( ( long ) a << 32 ) | ( b & 0xffffffffl ), 1, Integer::sum );
+		}
+
+		// Best IoU for each reference object.
+		final Map< Integer, Double > best = new HashMap<>();
+		for ( final Map.Entry< Long, Integer > e : overlaps.entrySet() )
+		{
+			final int a = ( int ) ( e.getKey() >>> 32 );
+			final int b = ( int ) e.getKey().longValue();
+			final int intersection = e.getValue();
+			final double iou = ( double ) intersection / ( refAreas.get( a ) + otherAreas.get( b ) - intersection );
+			best.merge( a, iou, Math::max );
+		}
+
+		double sum = 0.;
+		int nMatched = 0;
+		for ( final double iou : best.values() )
+		{
+			sum += iou;
+			if ( iou >= 0.5 )
+				nMatched++;
+		}
+		final double meanIoU = refAreas.isEmpty() ? ( otherAreas.isEmpty() ? 1. : 0. ) : sum / refAreas.size();
+		return new MaskComparison( refAreas.size(), otherAreas.size(), meanIoU, nMatched );
+	}
+
+	/**
+	 * Returns the mean, over the reference objects, of the IoU with their best
+	 * match. Unmatched objects count as 0.
+	 *
+	 * @return the mean IoU, from 0 to 1.
+	 */
+	double getMeanIoU()
+	{
+		return meanIoU;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( Locale.US, "%d objects vs %d in the reference, %d matched with IoU >= 0.5, mean best IoU %.3f",
+				nOther, nReference, nMatched, meanIoU );
+	}
+}
@@ -0,0 +1,208 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * The file formats in which cellpose can save its masks.
+ * <p>
+ * PNG files are deflate-compressed, so cellpose spends time compressing them
+ * and we spend time inflating them. Uncompressed TIFF and NPY files can be
+ * read straight from a memory-mapped buffer. The cellpose command line can
+ * save TIFF masks if its version has the <code>--save_tif</code> option, which
+ * we check once per executable. The persistent worker always saves NPY masks.
+ */
+public enum MaskFormat
+{
+	PNG( "_cp_masks.png", "--save_png" ),
+	TIFF( "_cp_masks.tif", "--save_tif" ),
+	/**
+	 * Raw NumPy arrays. Only understood by the persistent worker, the
+	 * <code>_seg.npy</code> files of the cellpose command line are pickled
+	 * dictionaries that we cannot read.
+	 */
+	NPY( "_cp_masks.npy", "--save_npy" );
+
+	private static final long PROBE_TIMEOUT = 60;
+
+	/**
+	 * How long to wait for the rest of the help once the process is done, in
+	 * ms.
+	 */
+	private static final long DRAIN_TIMEOUT = 1000;
+
+	/**
+	 * How long a failed probe is not retried, in ms. PNG is used meanwhile.
+	 */
+	private static final long FAILED_PROBE_TTL = 10 * 60 * 1000l;
+
+	private static final Map< String, MaskFormat > COMMAND_LINE_FORMATS = new ConcurrentHashMap<>();
+
+	/**
+	 * When the probe last failed, per command line.
+	 */
+	private static final Map< String, Long > FAILED_PROBES = new ConcurrentHashMap<>();
+
+	private final String suffix;
+
+	private final String flag;
+
+	private MaskFormat( final String suffix, final String flag )
+	{
+		this.suffix = suffix;
+		this.flag = flag;
+	}
+
+	/**
+	 * Returns the suffix cellpose appends to the image name to name the mask
+	 * file.
+	 *
+	 * @return the suffix, with the extension.
+	 */
+	public String getSuffix()
+	{
+		return suffix;
+	}
+
+	/**
+	 * Returns the command line argument that requests this format.
+	 *
+	 * @return the argument.
+	 */
+	public String getFlag()
+	{
+		return flag;
+	}
+
+	/**
+	 * Returns the format of a mask file, based on its name.
+	 *
+	 * @param name
+	 *            the file name.
+	 * @return the format, or <code>null</code> if the file is not a mask
+	 *         file.
+	 */
+	public static MaskFormat of( final String name )
+	{
+		for ( final MaskFormat format : values() )
+			if ( name.endsWith( format.suffix ) )
+				return format;
+		return null;
+	}
+
+	/**
+	 * Returns the best format the cellpose command line of the specified
+	 * settings supports. The executable is asked for its help the first time,
+	 * and the answer is cached. The help process is handed to the specified
+	 * consumer when it starts, and <code>null</code> when it is done, so that
+	 * it can be killed on cancel. It is killed with its descendants if it does
+	 * not answer within {@value #PROBE_TIMEOUT} s. If the executable could not
+	 * be asked, PNG is used and the probe is not retried for
+	 * {@value #FAILED_PROBE_TTL} ms, so that it does not run again for every
+	 * chunk.
+	 *
+	 * @param settings
+	 *            the cellpose settings.
+	 * @param register
+	 *            the consumer of the help process.
+	 * @return the format to request.
+	 */
+	public static MaskFormat forCommandLine( final AbstractCellposeSettings settings, final Consumer< Process > register )
+	{
+		final List< String > cmd = settings.toCmdLine( "" );
+		final List< String > help = new ArrayList<>( cmd.subList( 0, Math.max( 0, cmd.indexOf( "--dir" ) ) ) );
+		final String key = String.join( " ", help );
+
+		// Not in computeIfAbsent: other detections must not wait for the probe.
+		final MaskFormat known = COMMAND_LINE_FORMATS.get( key );
+		if ( known != null )
+			return known;
+		final Long failed = FAILED_PROBES.get( key );
+		if ( failed != null && System.currentTimeMillis() - failed < FAILED_PROBE_TTL )
+			return PNG;
+		final MaskFormat probed = probe( help, register );
+		if ( probed == null )
+		{
+			FAILED_PROBES.put( key, System.currentTimeMillis() );
+			return PNG;
+		}
+		FAILED_PROBES.remove( key );
+		final MaskFormat previous = COMMAND_LINE_FORMATS.putIfAbsent( key, probed );
+		return ( previous == null ) ? probed : previous;
+	}
+
+	/**
+	 * Runs the executable with <code>--help</code> and looks for the TIFF
+	 * flag in its output.
+	 *
+	 * @return the format, or <code>null</code> if the executable could not be
+	 *         asked, in which case the answer is only cached for a while.
+	 */
+	private static MaskFormat probe( final List< String > cmd, final Consumer< Process > register )
+	{
+		cmd.add( "--help" );
+		final Process process;
+		try
+		{
+			process = new ProcessBuilder( cmd ).redirectErrorStream( true ).start();
+		}
+		catch ( final IOException e )
+		{
+			return null;
+		}
+		register.accept( process );
+		try
+		{
+			/*
+			 * Read the output on another thread, so that a hung executable, or
+			 * a grandchild that keeps the output open, cannot block us past
+			 * the timeout.
+			 */
+			final AtomicBoolean saveTif = new AtomicBoolean( false );
+			final Thread drain = new Thread( () -> {
+				try (BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream(), StandardCharsets.UTF_8 ) ))
+				{
+					String line;
+					while ( ( line = reader.readLine() ) != null )
+						if ( line.contains( TIFF.flag ) )
+							saveTif.set( true );
+				}
+				catch ( final IOException e )
+				{}
+			}, "TrackMate-Cellpose help probe" );
+			drain.setDaemon( true );
+			drain.start();
+
+			if ( !process.waitFor( PROBE_TIMEOUT, TimeUnit.SECONDS ) )
+			{
+				// Cached, so that the next detections do not wait again.
+				ProcessTree.kill( process, 0l );
+				return PNG;
+			}
+			drain.join( DRAIN_TIMEOUT );
+			if ( saveTif.get() )
+				return TIFF;
+			// Killed on cancel, or broken: ask again later.
+			return ( process.exitValue() == 0 ) ? PNG : null;
+		}
+		catch ( final InterruptedException e )
+		{
+			ProcessTree.kill( process, 0l );
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		finally
+		{
+			register.accept( null );
+		}
+	}
+}
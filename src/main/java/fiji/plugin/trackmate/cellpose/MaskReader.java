@@ -0,0 +1,662 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Reads the label masks written by cellpose into an <code>int</code> array.
+ * <p>
+ * Masks come as 16-bit grayscale PNG files, as TIFF files (requested, or
+ * because there are more than 65535 objects) or as raw NumPy arrays from the
+ * persistent worker, see {@link MaskFormat}. Instead of opening them as an
+ * {@link ImagePlus} and converting them to 16-bit, which decodes them
+ * generically and clips the labels, this reader maps the file in memory and
+ * decodes these formats directly into a label array. Labels are unsigned
+ * 32-bit integers end to end. Files in other flavors of these formats (color,
+ * interlaced, tiled...) are opened with ImageJ instead, and rejected if ImageJ
+ * cannot give their labels exactly.
+ * <p>
+ * The inflate and label buffers are reused from one mask to the next, so an
+ * instance should be used for a sequence of masks. Instances are not
+ * thread-safe, and the label array returned is only valid until the next
+ * call.
+ */
+class MaskReader
+{
+
+	private static final byte[] PNG_SIGNATURE = new byte[] { ( byte ) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private static final byte[] NPY_MAGIC = new byte[] { ( byte ) 0x93, 'N', 'U', 'M', 'P', 'Y' };
+
+	private static final int IHDR = 0x49484452;
+
+	private static final int IDAT = 0x49444154;
+
+	private static final int IEND = 0x49454e44;
+
+	/**
+	 * The largest integer up to which all integers are exact in a float.
+	 */
+	private static final float MAX_EXACT_FLOAT = 1 << 24;
+
+	private static final Pattern NPY_DESCR = Pattern.compile( "'descr'\\s*:\\s*'([<>|=])([ui])(\\d)'" );
+
+	private static final Pattern NPY_FORTRAN = Pattern.compile( "'fortran_order'\\s*:\\s*(True|False)" );
+
+	private static final Pattern NPY_SHAPE = Pattern.compile( "'shape'\\s*:\\s*\\(([^)]*)\\)" );
+
+	private final Inflater inflater = new Inflater();
+
+	private byte[] compressed = new byte[ 0 ];
+
+	private byte[] inflated = new byte[ 0 ];
+
+	private int[] labels = new int[ 0 ];
+
+	private int width;
+
+	private int height;
+
+	/**
+	 * Reads a mask file.
+	 *
+	 * @param file
+	 *            the mask file.
+	 * @return the labels, row by row, or <code>null</code> if the file cannot
+	 *         be read. Only the first <code>width × height</code> elements
+	 *         are meaningful.
+	 */
+	int[] read( final File file )
+	{
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			final MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			try
+			{
+				final boolean ok;
+				if ( startsWith( map, PNG_SIGNATURE ) )
+					ok = readPng( map );
+				else if ( startsWith( map, NPY_MAGIC ) )
+					ok = readNpy( map );
+				else
+					ok = readTiff( map );
+				if ( ok )
+					return labels;
+			}
+			finally
+			{
+				ScratchSpace.unmap( map );
+			}
+		}
+		catch ( final IOException | DataFormatException | RuntimeException e )
+		{
+			// Fall back on ImageJ.
+		}
+		return readWithImageJ( file );
+	}
+
+	int getWidth()
+	{
+		return width;
+	}
+
+	int getHeight()
+	{
+		return height;
+	}
+
+	/**
+	 * Checks that a TIFF or NPY mask file holds all its data. Unlike PNG
+	 * files, these formats have no end marker, so this is how we know the
+	 * file was completely written.
+	 *
+	 * @param file
+	 *            the TIFF or NPY file.
+	 * @return <code>true</code> if the file can be read.
+	 */
+	static boolean isComplete( final File file )
+	{
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			if ( size < 8 )
+				return false;
+			final MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+			try
+			{
+				if ( startsWith( map, NPY_MAGIC ) )
+					return new NpyHeader( map ).isValid( size );
+				return new TiffLayout( map ).isValid( size );
+			}
+			finally
+			{
+				ScratchSpace.unmap( map );
+			}
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			return false;
+		}
+	}
+
+	private static boolean startsWith( final ByteBuffer bb, final byte[] magic )
+	{
+		if ( bb.limit() < magic.length )
+			return false;
+		for ( int i = 0; i < magic.length; i++ )
+			if ( bb.get( i ) != magic[ i ] )
+				return false;
+		return true;
+	}
+
+	/*
+	 * PNG.
+	 */
+
+	private boolean readPng( final ByteBuffer bb ) throws DataFormatException
+	{
+		bb.order( ByteOrder.BIG_ENDIAN );
+		bb.position( PNG_SIGNATURE.length );
+		int bytesPerPixel = 0;
+		int rowBytes = 0;
+		int inflatedBytes = 0;
+		inflater.reset();
+		while ( bb.remaining() >= 12 )
+		{
+			final int length = bb.getInt();
+			final int type = bb.getInt();
+			final int start = bb.position();
+			if ( type == IHDR )
+			{
+				width = bb.getInt();
+				height = bb.getInt();
+				final int bitDepth = bb.get();
+				final int colorType = bb.get();
+				bb.get(); // compression, always deflate
+				bb.get(); // filter method, always adaptive
+				final int interlace = bb.get();
+				if ( colorType != 0 || interlace != 0 || ( bitDepth != 8 && bitDepth != 16 ) )
+					return false;
+				bytesPerPixel = bitDepth / 8;
+				rowBytes = 1 + width * bytesPerPixel;
+				inflatedBuffer( height * rowBytes );
+			}
+			else if ( type == IDAT )
+			{
+				if ( bytesPerPixel == 0 )
+					return false;
+				inflatedBytes += inflate( bb, length, inflatedBytes, height * rowBytes - inflatedBytes );
+			}
+			else if ( type == IEND )
+			{
+				break;
+			}
+			bb.position( start + length + 4 ); // skip CRC
+		}
+		if ( bytesPerPixel == 0 || inflatedBytes < height * rowBytes )
+			return false;
+
+		unfilter( inflated, height, rowBytes, bytesPerPixel );
+
+		final int[] out = labelBuffer();
+		for ( int y = 0; y < height; y++ )
+		{
+			int i = y * rowBytes + 1;
+			int o = y * width;
+			if ( bytesPerPixel == 1 )
+				for ( int x = 0; x < width; x++ )
+					out[ o++ ] = inflated[ i++ ] & 0xff;
+			else
+				for ( int x = 0; x < width; x++, i += 2 )
+					out[ o++ ] = ( ( inflated[ i ] & 0xff ) << 8 ) | ( inflated[ i + 1 ] & 0xff );
+		}
+		return true;
+	}
+
+	/**
+	 * Reverts the PNG row filters in place. Each row starts with its filter
+	 * type, followed by the filtered bytes.
+	 */
+	private static void unfilter( final byte[] data, final int height, final int rowBytes, final int bpp )
+	{
+		for ( int y = 0; y < height; y++ )
+		{
+			final int row = y * rowBytes + 1;
+			final int prev = row - rowBytes; // Only valid if y > 0.
+			final int filter = data[ row - 1 ];
+			final int n = rowBytes - 1;
+			switch ( filter )
+			{
+			case 0:
+				break;
+			case 1: // Sub
+				for ( int i = bpp; i < n; i++ )
+					data[ row + i ] += data[ row + i - bpp ];
+				break;
+			case 2: // Up
+				if ( y > 0 )
+					for ( int i = 0; i < n; i++ )
+						data[ row + i ] += data[ prev + i ];
+				break;
+			case 3: // Average
+				for ( int i = 0; i < n; i++ )
+				{
+					final int left = ( i >= bpp ) ? data[ row + i - bpp ] & 0xff : 0;
+					final int up = ( y > 0 ) ? data[ prev + i ] & 0xff : 0;
+					data[ row + i ] += ( left + up ) >>> 1;
+				}
+				break;
+			case 4: // Paeth
+				for ( int i = 0; i < n; i++ )
+				{
+					final int a = ( i >= bpp ) ? data[ row + i - bpp ] & 0xff : 0;
+					final int b = ( y > 0 ) ? data[ prev + i ] & 0xff : 0;
+					final int c = ( i >= bpp && y > 0 ) ? data[ prev + i - bpp ] & 0xff : 0;
+					final int p = a + b - c;
+					final int pa = Math.abs( p - a );
+					final int pb = Math.abs( p - b );
+					final int pc = Math.abs( p - c );
+					final int predictor = ( pa <= pb && pa <= pc ) ? a : ( pb <= pc ) ? b : c;
+					data[ row + i ] += predictor;
+				}
+				break;
+			default:
+				throw new IllegalArgumentException( "Unknown PNG filter type: " + filter );
+			}
+		}
+	}
+
+	/**
+	 * Inflates compressed bytes from the current position of a buffer into
+	 * the inflated buffer. The inflater keeps its state between calls, so
+	 * that a stream split in several chunks can be inflated chunk by chunk.
+	 */
+	private int inflate( final ByteBuffer bb, final int length, final int offset, final int max ) throws DataFormatException
+	{
+		// Java 8 inflaters only take arrays.
+		if ( compressed.length < length )
+			compressed = new byte[ length ];
+		bb.get( compressed, 0, length );
+		inflater.setInput( compressed, 0, length );
+		int n = 0;
+		while ( !inflater.needsInput() && !inflater.finished() && n < max )
+		{
+			final int k = inflater.inflate( inflated, offset + n, max - n );
+			if ( k == 0 && inflater.needsDictionary() )
+				throw new DataFormatException( "Deflate stream with a preset dictionary." );
+			n += k;
+		}
+		return n;
+	}
+
+	/*
+	 * NPY.
+	 */
+
+	private boolean readNpy( final ByteBuffer bb )
+	{
+		final NpyHeader npy = new NpyHeader( bb );
+		if ( !npy.isValid( bb.limit() ) )
+			return false;
+
+		width = npy.width;
+		height = npy.height;
+		bb.order( npy.order );
+		bb.position( npy.dataOffset );
+		readSamples( bb, labelBuffer(), 0, width * height, npy.bytesPerSample );
+		return true;
+	}
+
+	/**
+	 * The header of a 2D NumPy array in C order.
+	 */
+	private static final class NpyHeader
+	{
+
+		private int width;
+
+		private int height;
+
+		private int bytesPerSample;
+
+		private ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+
+		private int dataOffset;
+
+		private boolean supported = true;
+
+		private NpyHeader( final ByteBuffer bb )
+		{
+			final int major = bb.get( 6 );
+			final int headerLength = ( major == 1 )
+					? bb.order( ByteOrder.LITTLE_ENDIAN ).getShort( 8 ) & 0xffff
+					: bb.order( ByteOrder.LITTLE_ENDIAN ).getInt( 8 );
+			final int headerStart = ( major == 1 ) ? 10 : 12;
+			dataOffset = headerStart + headerLength;
+			final byte[] bytes = new byte[ headerLength ];
+			for ( int i = 0; i < headerLength; i++ )
+				bytes[ i ] = bb.get( headerStart + i );
+			final String header = new String( bytes, StandardCharsets.ISO_8859_1 );
+
+			final Matcher descr = NPY_DESCR.matcher( header );
+			final Matcher fortran = NPY_FORTRAN.matcher( header );
+			final Matcher shape = NPY_SHAPE.matcher( header );
+			if ( !descr.find() || !fortran.find() || !shape.find() )
+			{
+				supported = false;
+				return;
+			}
+			if ( descr.group( 1 ).equals( ">" ) )
+				order = ByteOrder.BIG_ENDIAN;
+			bytesPerSample = Integer.parseInt( descr.group( 3 ) );
+			supported &= bytesPerSample == 1 || bytesPerSample == 2 || bytesPerSample == 4;
+			supported &= fortran.group( 1 ).equals( "False" );
+
+			// Ignore leading singleton dimensions.
+			final String[] dims = shape.group( 1 ).split( "," );
+			int nDims = 0;
+			for ( final String dim : dims )
+			{
+				if ( dim.trim().isEmpty() )
+					continue;
+				final int d = Integer.parseInt( dim.trim() );
+				if ( nDims == 0 && d == 1 )
+					continue;
+				nDims++;
+				height = width;
+				width = d;
+			}
+			supported &= nDims == 2;
+		}
+
+		private boolean isValid( final long size )
+		{
+			return supported && dataOffset + ( long ) width * height * bytesPerSample <= size;
+		}
+	}
+
+	/*
+	 * TIFF.
+	 */
+
+	private boolean readTiff( final ByteBuffer bb ) throws DataFormatException
+	{
+		final TiffLayout tiff = new TiffLayout( bb );
+		if ( !tiff.isValid( bb.limit() ) )
+			return false;
+
+		width = tiff.width;
+		height = tiff.height;
+		final int[] out = labelBuffer();
+		final int nPixels = width * height;
+		int o = 0;
+		for ( int s = 0; s < tiff.stripOffsets.length && o < nPixels; s++ )
+		{
+			final int n = Math.min( nPixels - o, tiff.rowsPerStrip * width );
+			bb.position( ( int ) tiff.stripOffsets[ s ] );
+			final ByteBuffer strip;
+			if ( tiff.compression == 1 )
+			{
+				strip = bb;
+			}
+			else
+			{
+				final int stripBytes = n * tiff.bytesPerSample;
+				inflatedBuffer( stripBytes );
+				inflater.reset();
+				if ( inflate( bb, ( int ) tiff.stripByteCounts[ s ], 0, stripBytes ) < stripBytes )
+					return false;
+				strip = ByteBuffer.wrap( inflated, 0, stripBytes ).order( bb.order() );
+			}
+			readSamples( strip, out, o, n, tiff.bytesPerSample );
+			if ( tiff.predictor == 2 )
+				undoDifferencing( out, o, n, tiff.bytesPerSample );
+			o += n;
+		}
+		return o == nPixels;
+	}
+
+	/**
+	 * Reverts the TIFF horizontal differencing predictor, row by row.
+	 */
+	private void undoDifferencing( final int[] out, final int offset, final int n, final int bytesPerSample )
+	{
+		final int mask = ( bytesPerSample == 4 ) ? -1 : ( 1 << ( 8 * bytesPerSample ) ) - 1;
+		for ( int row = offset; row < offset + n; row += width )
+			for ( int i = row + 1; i < row + width; i++ )
+				out[ i ] = ( out[ i ] + out[ i - 1 ] ) & mask;
+	}
+
+	/**
+	 * The layout of the first image of a single-channel, stripped, integer
+	 * classic TIFF file, uncompressed or deflate-compressed.
+	 */
+	private static final class TiffLayout
+	{
+
+		private int width;
+
+		private int height;
+
+		private int bytesPerSample;
+
+		private int compression = 1;
+
+		private int predictor = 1;
+
+		private int rowsPerStrip = -1;
+
+		private long[] stripOffsets;
+
+		private long[] stripByteCounts;
+
+		private boolean supported = true;
+
+		private TiffLayout( final ByteBuffer bb )
+		{
+			final byte b0 = bb.get( 0 );
+			final byte b1 = bb.get( 1 );
+			if ( b0 == 'I' && b1 == 'I' )
+				bb.order( ByteOrder.LITTLE_ENDIAN );
+			else if ( b0 == 'M' && b1 == 'M' )
+				bb.order( ByteOrder.BIG_ENDIAN );
+			else
+				throw new IllegalArgumentException( "Not a TIFF file." );
+			if ( bb.getShort( 2 ) != 42 )
+				throw new IllegalArgumentException( "Not a classic TIFF file." );
+
+			final int ifd = bb.getInt( 4 );
+			final int nEntries = bb.getShort( ifd ) & 0xffff;
+			int bitsPerSample = 1;
+			for ( int e = 0; e < nEntries; e++ )
+			{
+				final int entry = ifd + 2 + 12 * e;
+				final int tag = bb.getShort( entry ) & 0xffff;
+				switch ( tag )
+				{
+				case 256:
+					width = ( int ) value( bb, entry, 0 );
+					break;
+				case 257:
+					height = ( int ) value( bb, entry, 0 );
+					break;
+				case 258:
+					bitsPerSample = ( int ) value( bb, entry, 0 );
+					break;
+				case 259:
+					compression = ( int ) value( bb, entry, 0 );
+					break;
+				case 273:
+					stripOffsets = values( bb, entry );
+					break;
+				case 277:
+					supported &= value( bb, entry, 0 ) == 1;
+					break;
+				case 278:
+					rowsPerStrip = ( int ) Math.min( Integer.MAX_VALUE, value( bb, entry, 0 ) );
+					break;
+				case 279:
+					stripByteCounts = values( bb, entry );
+					break;
+				case 317:
+					predictor = ( int ) value( bb, entry, 0 );
+					break;
+				case 339:
+					final long sampleFormat = value( bb, entry, 0 );
+					supported &= sampleFormat == 1 || sampleFormat == 2;
+					break;
+				default:
+					break;
+				}
+			}
+			supported &= bitsPerSample == 8 || bitsPerSample == 16 || bitsPerSample == 32;
+			// 8 and 32946 are the new and old codes for deflate.
+			supported &= compression == 1 || compression == 8 || compression == 32946;
+			supported &= predictor == 1 || predictor == 2;
+			bytesPerSample = bitsPerSample / 8;
+			if ( rowsPerStrip <= 0 || rowsPerStrip > height )
+				rowsPerStrip = height;
+		}
+
+		private boolean isValid( final long size )
+		{
+			if ( !supported || width <= 0 || height <= 0 || stripOffsets == null || stripByteCounts == null
+					|| stripOffsets.length != stripByteCounts.length )
+				return false;
+			long total = 0;
+			for ( int s = 0; s < stripOffsets.length; s++ )
+			{
+				if ( stripOffsets[ s ] + stripByteCounts[ s ] > size )
+					return false;
+				total += stripByteCounts[ s ];
+			}
+			return compression != 1 || total >= ( long ) width * height * bytesPerSample;
+		}
+
+		private static long[] values( final ByteBuffer bb, final int entry )
+		{
+			final long[] values = new long[ bb.getInt( entry + 4 ) ];
+			for ( int i = 0; i < values.length; i++ )
+				values[ i ] = value( bb, entry, i );
+			return values;
+		}
+
+		/**
+		 * Returns the i-th value of a SHORT or LONG entry. Values that do not
+		 * fit in the 4 bytes of the entry are stored at an offset.
+		 */
+		private static long value( final ByteBuffer bb, final int entry, final int i )
+		{
+			final int type = bb.getShort( entry + 2 );
+			final int count = bb.getInt( entry + 4 );
+			final int size = ( type == 3 ) ? 2 : 4;
+			final int start = ( count * size <= 4 ) ? entry + 8 : bb.getInt( entry + 8 );
+			return ( type == 3 )
+					? bb.getShort( start + i * size ) & 0xffff
+					: bb.getInt( start + i * size ) & 0xffffffffl;
+		}
+	}
+
+	/*
+	 * Common.
+	 */
+
+	/**
+	 * Reads n integer samples from the current position of a buffer, in the
+	 * buffer byte order. Labels are never negative, so signed and unsigned
+	 * samples are read the same way.
+	 */
+	private static void readSamples( final ByteBuffer bb, final int[] out, final int offset, final int n, final int bytesPerSample )
+	{
+		switch ( bytesPerSample )
+		{
+		case 1:
+			for ( int i = offset; i < offset + n; i++ )
+				out[ i ] = bb.get() & 0xff;
+			break;
+		case 2:
+			for ( int i = offset; i < offset + n; i++ )
+				out[ i ] = bb.getShort() & 0xffff;
+			break;
+		default:
+			bb.asIntBuffer().get( out, offset, n );
+			bb.position( bb.position() + 4 * n );
+			break;
+		}
+	}
+
+	/**
+	 * Reads the integer pixels of an image opened by ImageJ. ImageJ opens
+	 * 32-bit images as float, so their labels are only accepted if they are
+	 * exact, that is integers not above 2^24. Other masks are rejected rather
+	 * than having distinct labels merged.
+	 */
+	private int[] readWithImageJ( final File file )
+	{
+		final ImagePlus imp = IJ.openImage( file.getAbsolutePath() );
+		if ( imp == null )
+			return null;
+		final ImageProcessor ip = imp.getProcessor();
+		width = ip.getWidth();
+		height = ip.getHeight();
+		final int n = width * height;
+		final int[] out = labelBuffer();
+		final Object pixels = ip.getPixels();
+		if ( pixels instanceof byte[] )
+		{
+			final byte[] bytes = ( byte[] ) pixels;
+			for ( int i = 0; i < n; i++ )
+				out[ i ] = bytes[ i ] & 0xff;
+		}
+		else if ( pixels instanceof short[] )
+		{
+			final short[] shorts = ( short[] ) pixels;
+			for ( int i = 0; i < n; i++ )
+				out[ i ] = shorts[ i ] & 0xffff;
+		}
+		else if ( pixels instanceof float[] )
+		{
+			final float[] floats = ( float[] ) pixels;
+			for ( int i = 0; i < n; i++ )
+			{
+				final float v = floats[ i ];
+				if ( !( v >= 0f && v <= MAX_EXACT_FLOAT ) || v != ( int ) v )
+					return null;
+				out[ i ] = ( int ) v;
+			}
+		}
+		else
+		{
+			// RGB images are not label masks.
+			return null;
+		}
+		return out;
+	}
+
+	private void inflatedBuffer( final int size )
+	{
+		if ( inflated.length < size )
+			inflated = new byte[ size ];
+	}
+
+	private int[] labelBuffer()
+	{
+		if ( labels.length < width * height )
+			labels = new int[ width * height ];
+		return labels;
+	}
+}
@@ -0,0 +1,223 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Watches the folders in which cellpose writes its masks, and hands over each
+ * mask as soon as it is fully written.
+ * <p>
+ * Cellpose writes the masks of a folder one after the other. Instead of
+ * waiting for the cellpose process to end, this watcher polls the folders and
+ * notifies a listener with each new mask file, so that the masks can be
+ * converted while cellpose is still running. A mask file is considered
+ * complete when its size did not change between two polls and its end is
+ * there: the PNG end chunk, all the TIFF strips, or all the NPY data, see
+ * {@link MaskFormat}. Each frame is notified at most once.
+ */
+class MaskWatcher
+{
+
+	private static final byte[] PNG_END = "IEND".getBytes( StandardCharsets.US_ASCII );
+
+	private final List< File > dirs = new ArrayList<>();
+
+	private final Map< File, Long > sizes = new HashMap<>();
+
+	private final Set< Long > seen = new HashSet<>();
+
+	private final BiConsumer< Long, File > listener;
+
+	private final ScheduledExecutorService poller;
+
+	/**
+	 * Creates and starts a watcher.
+	 *
+	 * @param pollPeriod
+	 *            the polling period, in milliseconds.
+	 * @param listener
+	 *            the listener notified with the frame and the file of each new
+	 *            complete mask. It is called from the polling thread, and
+	 *            should not block.
+	 */
+	MaskWatcher( final long pollPeriod, final BiConsumer< Long, File > listener )
+	{
+		this.listener = listener;
+		this.poller = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread t = new Thread( r, "TrackMate-CellposeMaskWatcher" );
+			t.setDaemon( true );
+			return t;
+		} );
+		poller.scheduleWithFixedDelay( () -> scan( false ), pollPeriod, pollPeriod, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * Adds a folder to watch.
+	 *
+	 * @param dir
+	 *            the folder.
+	 */
+	synchronized void watch( final File dir )
+	{
+		dirs.add( dir );
+	}
+
+	/**
+	 * Scans the folders a last time, and notifies all the masks not seen yet
+	 * without waiting for them to be stable. To be called once the processes
+	 * writing the masks are finished.
+	 */
+	void flush()
+	{
+		scan( true );
+	}
+
+	/**
+	 * Scans a folder a last time, notifies all the masks not seen yet in it,
+	 * and stops watching it. To be called once the process writing the masks
+	 * in this folder is finished.
+	 *
+	 * @param dir
+	 *            the folder.
+	 */
+	synchronized void release( final File dir )
+	{
+		scan( dir, true );
+		dirs.remove( dir );
+		sizes.keySet().removeIf( f -> dir.equals( f.getParentFile() ) );
+	}
+
+	/**
+	 * Stops polling.
+	 */
+	void stop()
+	{
+		poller.shutdownNow();
+	}
+
+	/**
+	 * Returns the frame a mask file corresponds to, or -1 if the file is not a
+	 * mask file.
+	 *
+	 * @param name
+	 *            the file name.
+	 * @return the frame, or -1.
+	 */
+	static long frameOf( final String name )
+	{
+		final MaskFormat format = MaskFormat.of( name );
+		if ( format == null )
+			return -1;
+		try
+		{
+			return Long.parseLong( name.substring( 0, name.length() - format.getSuffix().length() ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return -1;
+		}
+	}
+
+	private synchronized void scan( final boolean force )
+	{
+		for ( final File dir : dirs )
+			scan( dir, force );
+	}
+
+	private void scan( final File dir, final boolean force )
+	{
+		final File[] files = dir.listFiles();
+		if ( files == null )
+			return;
+
+		for ( final File file : files )
+		{
+			final long frame = frameOf( file.getName() );
+			if ( frame < 0 || seen.contains( frame ) )
+				continue;
+
+			final long size = file.length();
+			final Long previous = sizes.put( file, size );
+			if ( force || ( previous != null && previous == size && isComplete( file, size ) ) )
+			{
+				seen.add( frame );
+				sizes.remove( file );
+				listener.accept( frame, file );
+			}
+		}
+	}
+
+	/**
+	 * Lists the mask files of a folder, with a single folder scan.
+	 *
+	 * @param dir
+	 *            the folder.
+	 * @return a map from frame to mask file. Empty if the folder does not
+	 *         exist.
+	 */
+	static Map< Long, File > index( final File dir )
+	{
+		final Map< Long, File > masks = new HashMap<>();
+		final File[] files = dir.listFiles();
+		if ( files == null )
+			return masks;
+		for ( final File file : files )
+		{
+			final long frame = frameOf( file.getName() );
+			if ( frame >= 0 )
+				masks.put( frame, file );
+		}
+		return masks;
+	}
+
+	/**
+	 * Checks that a mask file exists and was completely written.
+	 *
+	 * @param file
+	 *            the mask file.
+	 * @return <code>true</code> if the mask file is complete.
+	 */
+	static boolean isComplete( final File file )
+	{
+		return file.isFile() && isComplete( file, file.length() );
+	}
+
+	/**
+	 * Checks that the PNG end chunk has been written. The last 12 bytes of a
+	 * PNG file are the IEND chunk: length (4 bytes), type (4 bytes) and CRC
+	 * (4 bytes).
+	 */
+	private static boolean isComplete( final File file, final long size )
+	{
+		if ( MaskFormat.of( file.getName() ) != MaskFormat.PNG )
+			return MaskReader.isComplete( file );
+		if ( size < 12 )
+			return false;
+		try (RandomAccessFile raf = new RandomAccessFile( file, "r" ))
+		{
+			final byte[] type = new byte[ 4 ];
+			raf.seek( size - 8 );
+			raf.readFully( type );
+			for ( int i = 0; i < type.length; i++ )
+				if ( type[ i ] != PNG_END[ i ] )
+					return false;
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Kills a process and all its descendants.
+ * <p>
+ * Cellpose is often started through wrappers (conda run, shell launchers,
+ * the cellpose executable itself) that start the Python process as a child or
+ * grandchild. {@link Process#destroy()} only signals the direct child, which
+ * leaves the actual cellpose process running and using the CPU or the GPU. On
+ * Java 9 and later we use the process handle API to find the descendants. On
+ * Java 8, we can only find them on Unix-like systems, by walking the output of
+ * <code>ps</code>.
+ */
+class ProcessTree
+{
+
+	private ProcessTree()
+	{}
+
+	/**
+	 * Forcibly kills a process and all its descendants, and waits for the
+	 * process to be gone for at most the specified time.
+	 *
+	 * @param process
+	 *            the process to kill, can be <code>null</code>.
+	 * @param timeout
+	 *            how long to wait for the process to die, in milliseconds.
+	 * @return <code>true</code> if the process is dead.
+	 */
+	static boolean kill( final Process process, final long timeout )
+	{
+		if ( process == null )
+			return true;
+
+		// Collect descendants before the parent dies and they get re-parented.
+		if ( !killWithHandles( process ) )
+		{
+			final List< Long > descendants = descendantsFromPs( process );
+			process.destroyForcibly();
+			for ( final Long pid : descendants )
+				killPid( pid );
+		}
+		try
+		{
+			return process.waitFor( timeout, TimeUnit.MILLISECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return !process.isAlive();
+		}
+	}
+
+	/**
+	 * Uses the Java 9 process handle API, through reflection since we compile
+	 * for Java 8.
+	 *
+	 * @return <code>false</code> if the API is not available.
+	 */
+	private static boolean killWithHandles( final Process process )
+	{
+		try
+		{
+			final Class< ? > handleClass = Class.forName( "java.lang.ProcessHandle" );
+			final Method toHandle = Process.class.getMethod( "toHandle" );
+			final Method descendants = handleClass.getMethod( "descendants" );
+			final Method destroyForcibly = handleClass.getMethod( "destroyForcibly" );
+
+			final Object handle = toHandle.invoke( process );
+			final List< Object > children = new ArrayList<>();
+			try (Stream< ? > stream = ( Stream< ? > ) descendants.invoke( handle ))
+			{
+				stream.forEach( children::add );
+			}
+			process.destroyForcibly();
+			for ( final Object child : children )
+				destroyForcibly.invoke( child );
+			return true;
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return false;
+		}
+	}
+
+	private static List< Long > descendantsFromPs( final Process process )
+	{
+		final List< Long > descendants = new ArrayList<>();
+		final long root = pid( process );
+		if ( root < 0 || isWindows() )
+			return descendants;
+
+		final Map< Long, List< Long > > children = new HashMap<>();
+		try
+		{
+			final Process ps = new ProcessBuilder( "ps", "-A", "-o", "pid=", "-o", "ppid=" ).start();
+			try (BufferedReader reader = new BufferedReader( new InputStreamReader( ps.getInputStream(), StandardCharsets.US_ASCII ) ))
+			{
+				String line;
+				while ( ( line = reader.readLine() ) != null )
+				{
+					final String[] items = line.trim().split( "\\s+" );
+					if ( items.length < 2 )
+						continue;
+					try
+					{
+						final long pid = Long.parseLong( items[ 0 ] );
+						final long ppid = Long.parseLong( items[ 1 ] );
+						children.computeIfAbsent( ppid, k -> new ArrayList<>() ).add( pid );
+					}
+					catch ( final NumberFormatException e )
+					{
+						// Header or garbage, skip.
+					}
+				}
+			}
+			ps.waitFor( 5, TimeUnit.SECONDS );
+		}
+		catch ( final IOException e )
+		{
+			return descendants;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return descendants;
+		}
+
+		// Breadth-first walk from the root.
+		final List< Long > queue = new ArrayList<>();
+		queue.add( root );
+		for ( int i = 0; i < queue.size(); i++ )
+		{
+			final List< Long > c = children.get( queue.get( i ) );
+			if ( c == null )
+				continue;
+			for ( final Long pid : c )
+			{
+				if ( queue.contains( pid ) )
+					continue;
+				queue.add( pid );
+				descendants.add( pid );
+			}
+		}
+		return descendants;
+	}
+
+	/**
+	 * Returns the PID of a process on Java 8 and Unix, or -1.
+	 */
+	private static long pid( final Process process )
+	{
+		try
+		{
+			final Field field = process.getClass().getDeclaredField( "pid" );
+			field.setAccessible( true );
+			return ( ( Number ) field.get( process ) ).longValue();
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			return -1;
+		}
+	}
+
+	private static void killPid( final long pid )
+	{
+		try
+		{
+			new ProcessBuilder( "kill", "-9", Long.toString( pid ) ).start().waitFor( 5, TimeUnit.SECONDS );
+		}
+		catch ( final IOException e )
+		{
+			// Already gone or cannot kill, nothing more we can do.
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean isWindows()
+	{
+		return System.getProperty( "os.name" ).toLowerCase( Locale.ROOT ).startsWith( "win" );
+	}
+}
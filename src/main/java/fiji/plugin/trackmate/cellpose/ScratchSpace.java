@@ -0,0 +1,381 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import fiji.plugin.trackmate.Logger;
+
+/**
+ * The folder in which frames and masks are exchanged with cellpose.
+ * <p>
+ * Every frame is written to disk and read back by cellpose, and every mask is
+ * written by cellpose and read back by us. When the default temp folder is on
+ * a slow or network-backed disk, as on many cluster nodes, this dominates the
+ * run time. A RAM-backed file system such as <code>/dev/shm</code> makes this
+ * exchange a memory copy. It is preferred when it exists and has room for the
+ * frames in flight. The location and a size limit can be configured, see
+ * {@link CellposePreferences#SCRATCH_DIR} and
+ * {@link CellposePreferences#SCRATCH_MAX_SIZE}, and we fall back to the
+ * default temp folder otherwise.
+ * <p>
+ * This class also manages the lifetime of the folders it creates. Each folder
+ * is deleted as soon as it is released, and a single shutdown hook deletes
+ * the ones still there when Fiji quits. Each folder comes with a lock file
+ * held while the JVM lives, so that the folders left over by a session that
+ * crashed can be told from the ones in use by another session, and are swept
+ * the first time a scratch space is selected in a root folder. Finally, the
+ * bytes a detection has in the scratch folder can be capped with
+ * {@link CellposePreferences#SCRATCH_QUOTA}: frames are then exported only
+ * when the masks of previous frames were consumed.
+ */
+public class ScratchSpace
+{
+
+	private static final String[] RAM_DISKS = new String[] { "/dev/shm", "/run/shm" };
+
+	/**
+	 * We want this much more free space than the estimated use.
+	 */
+	private static final double SAFETY_FACTOR = 2.;
+
+	/**
+	 * The names of the folders we create.
+	 */
+	private static final Pattern FOLDER_NAME = Pattern.compile( "TrackMate-(cellpose|omnipose)_.*" );
+
+	private static final String LOCK_SUFFIX = ".lock";
+
+	/**
+	 * Folders without a lock file, made by older versions, are swept only
+	 * when older than this, in milliseconds.
+	 */
+	private static final long ORPHAN_AGE = 24l * 3600l * 1000l;
+
+	/**
+	 * The folders in use in this JVM, with the channel holding their lock.
+	 */
+	private static final Map< Path, FileChannel > LIVE = new ConcurrentHashMap<>();
+
+	private static final Set< Path > SWEPT = ConcurrentHashMap.newKeySet();
+
+	static
+	{
+		Runtime.getRuntime().addShutdownHook( new Thread( ScratchSpace::releaseAll, "TrackMate-CellposeScratchCleanup" ) );
+	}
+
+	private final Path root;
+
+	private final boolean ramBacked;
+
+	private final long quota;
+
+	private long used;
+
+	private ScratchSpace( final Path root, final boolean ramBacked, final Logger logger )
+	{
+		this.root = root;
+		this.ramBacked = ramBacked;
+		this.quota = CellposePreferences.scratchQuotaBytes();
+		if ( SWEPT.add( root ) )
+			sweep( root, logger );
+	}
+
+	/**
+	 * Picks the scratch folder for a detection.
+	 *
+	 * @param estimatedBytes
+	 *            an estimate of the maximal number of bytes the detection will
+	 *            have in the scratch folder at any time.
+	 * @param logger
+	 *            a logger to report the choice.
+	 * @return the scratch space.
+	 */
+	public static ScratchSpace select( final long estimatedBytes, final Logger logger )
+	{
+		final List< Path > candidates = new ArrayList<>();
+		final String configured = CellposePreferences.scratchDir();
+		if ( !configured.isEmpty() )
+			candidates.add( Paths.get( configured ) );
+		else if ( CellposePreferences.useRamScratch() )
+			for ( final String ramDisk : RAM_DISKS )
+				candidates.add( Paths.get( ramDisk ) );
+
+		final long limit = CellposePreferences.scratchMaxBytes();
+		for ( final Path candidate : candidates )
+		{
+			final File dir = candidate.toFile();
+			if ( !dir.isDirectory() || !dir.canWrite() )
+				continue;
+
+			if ( limit > 0 && estimatedBytes > limit )
+			{
+				logger.log( String.format( Locale.US, "Not using %s as scratch folder: estimated use %.0f MB is above the limit of %.0f MB.\n",
+						candidate, estimatedBytes / 1e6, limit / 1e6 ) );
+				continue;
+			}
+			final long usable = dir.getUsableSpace();
+			if ( usable < SAFETY_FACTOR * estimatedBytes )
+			{
+				logger.log( String.format( Locale.US, "Not using %s as scratch folder: %.0f MB free for an estimated use of %.0f MB.\n",
+						candidate, usable / 1e6, estimatedBytes / 1e6 ) );
+				continue;
+			}
+			return new ScratchSpace( candidate, configured.isEmpty(), logger );
+		}
+		return new ScratchSpace( Paths.get( System.getProperty( "java.io.tmpdir" ) ), false, logger );
+	}
+
+	/**
+	 * Creates a new folder in the scratch space, and locks it until it is
+	 * released.
+	 *
+	 * @param prefix
+	 *            the prefix of the folder name.
+	 * @return the new folder.
+	 * @throws IOException
+	 *             if the folder cannot be created.
+	 */
+	public Path createTempDirectory( final String prefix ) throws IOException
+	{
+		final Path dir = Files.createTempDirectory( root, prefix );
+		final FileChannel channel = FileChannel.open( lockFile( dir ), StandardOpenOption.CREATE, StandardOpenOption.WRITE );
+		try
+		{
+			channel.tryLock();
+		}
+		catch ( final IOException e )
+		{
+			// No locks on this file system, orphans will be swept by age.
+		}
+		LIVE.put( dir, channel );
+		return dir;
+	}
+
+	/**
+	 * Deletes a folder created by this scratch space, and its lock. If the
+	 * folder cannot be deleted yet, for instance because a process still
+	 * writes in it, it will be deleted when Fiji quits.
+	 *
+	 * @param dir
+	 *            the folder.
+	 * @return <code>true</code> if the folder was deleted.
+	 */
+	public static boolean release( final Path dir )
+	{
+		final FileChannel channel = LIVE.remove( dir );
+		try
+		{
+			if ( Files.exists( dir ) )
+				CellposeDetector.recursiveDelete( dir );
+		}
+		catch ( final IOException e )
+		{
+			if ( channel != null )
+				LIVE.put( dir, channel );
+			return false;
+		}
+		try
+		{
+			if ( channel != null )
+				channel.close();
+			Files.deleteIfExists( lockFile( dir ) );
+		}
+		catch ( final IOException e )
+		{
+			// The lock file alone will be swept later.
+		}
+		return true;
+	}
+
+	/**
+	 * Reserves room in the scratch space, waiting if needed until enough was
+	 * freed to stay within the quota. A reservation larger than the quota is
+	 * granted when nothing else is reserved, so that a detection always
+	 * progresses.
+	 *
+	 * @param bytes
+	 *            the number of bytes to reserve.
+	 * @throws InterruptedException
+	 *             if interrupted while waiting.
+	 */
+	public synchronized void reserve( final long bytes ) throws InterruptedException
+	{
+		while ( quota > 0 && used > 0 && used + bytes > quota )
+			wait();
+		used += bytes;
+	}
+
+	/**
+	 * Frees room reserved with {@link #reserve(long)}.
+	 *
+	 * @param bytes
+	 *            the number of bytes to free.
+	 */
+	public synchronized void free( final long bytes )
+	{
+		used = Math.max( 0, used - bytes );
+		notifyAll();
+	}
+
+	/**
+	 * Returns the root of the scratch space.
+	 *
+	 * @return the root folder.
+	 */
+	public Path getRoot()
+	{
+		return root;
+	}
+
+	/**
+	 * Returns <code>true</code> if the scratch space is a RAM-backed file
+	 * system.
+	 *
+	 * @return whether the scratch space is in RAM.
+	 */
+	public boolean isRamBacked()
+	{
+		return ramBacked;
+	}
+
+	@Override
+	public String toString()
+	{
+		return root + ( ramBacked ? " (RAM-backed)" : "" );
+	}
+
+	private static Path lockFile( final Path dir )
+	{
+		return dir.resolveSibling( dir.getFileName() + LOCK_SUFFIX );
+	}
+
+	private static void releaseAll()
+	{
+		for ( final Path dir : new ArrayList<>( LIVE.keySet() ) )
+			release( dir );
+	}
+
+	/**
+	 * Deletes the folders left over by sessions that are gone: the ones with
+	 * a lock file nobody holds, and old ones without a lock file.
+	 */
+	private static void sweep( final Path root, final Logger logger )
+	{
+		final File[] files = root.toFile().listFiles();
+		if ( files == null )
+			return;
+
+		int nSwept = 0;
+		for ( final File file : files )
+		{
+			if ( !file.isDirectory() || !FOLDER_NAME.matcher( file.getName() ).matches() )
+				continue;
+			final Path dir = file.toPath();
+			if ( LIVE.containsKey( dir ) )
+				continue;
+
+			final Path lock = lockFile( dir );
+			final boolean orphan;
+			if ( Files.exists( lock ) )
+				orphan = isOrphan( lock );
+			else
+				orphan = System.currentTimeMillis() - file.lastModified() > ORPHAN_AGE;
+			if ( !orphan )
+				continue;
+
+			try
+			{
+				CellposeDetector.recursiveDelete( dir );
+				Files.deleteIfExists( lock );
+				nSwept++;
+			}
+			catch ( final IOException | SecurityException e )
+			{
+				// Someone else's, or still in use. Leave it.
+			}
+		}
+		if ( nSwept > 0 )
+			logger.log( "Deleted " + nSwept + " scratch folder(s) left over by previous sessions in " + root + ".\n" );
+	}
+
+	/**
+	 * Returns <code>true</code> if nobody holds the specified lock file.
+	 */
+	private static boolean isOrphan( final Path lock )
+	{
+		try (FileChannel channel = FileChannel.open( lock, StandardOpenOption.WRITE ))
+		{
+			final FileLock fileLock = channel.tryLock();
+			if ( fileLock == null )
+				return false;
+			fileLock.release();
+			return true;
+		}
+		catch ( final OverlappingFileLockException e )
+		{
+			// Held in this JVM.
+			return false;
+		}
+		catch ( final IOException | SecurityException e )
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Releases a memory-mapped buffer right away instead of waiting for the
+	 * garbage collector. This matters on a RAM-backed file system, where a
+	 * deleted file still holds its memory as long as it is mapped. Best
+	 * effort: does nothing if the JVM does not let us do it.
+	 *
+	 * @param buffer
+	 *            the buffer to release. Must not be used afterwards.
+	 */
+	static void unmap( final MappedByteBuffer buffer )
+	{
+		try
+		{
+			// Java 9 and later.
+			final Class< ? > unsafeClass = Class.forName( "sun.misc.Unsafe" );
+			final Method invokeCleaner = unsafeClass.getMethod( "invokeCleaner", ByteBuffer.class );
+			final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+			theUnsafe.setAccessible( true );
+			invokeCleaner.invoke( theUnsafe.get( null ), buffer );
+			return;
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Try the Java 8 way.
+		}
+		try
+		{
+			final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+			cleanerMethod.setAccessible( true );
+			final Object cleaner = cleanerMethod.invoke( buffer );
+			if ( cleaner != null )
+				cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+		}
+		catch ( final ReflectiveOperationException | RuntimeException e )
+		{
+			// Left to the garbage collector.
+		}
+	}
+}
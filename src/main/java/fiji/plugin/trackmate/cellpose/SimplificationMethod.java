@@ -0,0 +1,34 @@
+package fiji.plugin.trackmate.cellpose;
+
+/**
+ * The algorithms to simplify the contours of the spots.
+ */
+public enum SimplificationMethod
+{
+	/**
+	 * Douglas-Peucker: keeps the vertices farther than the tolerance from the
+	 * simplified contour. Good at keeping the shape of the objects.
+	 */
+	DOUGLAS_PEUCKER( "Douglas-Peucker" ),
+
+	/**
+	 * Visvalingam-Whyatt: removes the vertices that make the smallest
+	 * triangles with their neighbors first, as long as these triangles have an
+	 * area smaller than the square of the tolerance. Faster on long contours,
+	 * and it removes the staircase of the pixel edges evenly.
+	 */
+	VISVALINGAM_WHYATT( "Visvalingam-Whyatt" );
+
+	private final String name;
+
+	SimplificationMethod( final String name )
+	{
+		this.name = name;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}
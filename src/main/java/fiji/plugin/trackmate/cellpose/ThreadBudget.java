@@ -0,0 +1,156 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The number of threads, and optionally the CPUs, a cellpose process is
+ * allowed to use.
+ * <p>
+ * By default, each PyTorch process uses all the cores of the machine. When
+ * several cellpose processes run concurrently on the CPU, they compete for the
+ * same cores and spend their time switching contexts. A budget splits the
+ * threads given to the detector between the concurrent processes. It is
+ * passed to the processes with the environment variables read by the OpenMP,
+ * MKL, OpenBLAS, numexpr and Accelerate thread pools. On Linux, the processes
+ * can also be pinned to disjoint sets of CPUs with <code>taskset</code>.
+ */
+public class ThreadBudget
+{
+
+	/**
+	 * The environment variables that limit the threads used by the numerical
+	 * libraries PyTorch and numpy rely on.
+	 */
+	private static final String[] THREAD_VARIABLES = new String[] {
+			"OMP_NUM_THREADS",
+			"MKL_NUM_THREADS",
+			"OPENBLAS_NUM_THREADS",
+			"NUMEXPR_NUM_THREADS",
+			"VECLIB_MAXIMUM_THREADS" };
+
+	private static final String[] TASKSET_PATHS = new String[] { "/usr/bin/taskset", "/bin/taskset" };
+
+	/**
+	 * No budget: the process uses the library defaults.
+	 */
+	public static final ThreadBudget NONE = new ThreadBudget( 0, null );
+
+	private final int nThreads;
+
+	private final int[] cpus;
+
+	private ThreadBudget( final int nThreads, final int[] cpus )
+	{
+		this.nThreads = nThreads;
+		this.cpus = cpus;
+	}
+
+	/**
+	 * Returns the budget of one of several concurrent processes.
+	 *
+	 * @param numThreads
+	 *            the total number of threads given to the detector.
+	 * @param nProcesses
+	 *            the number of processes running concurrently.
+	 * @param index
+	 *            the index of the process, from 0 to
+	 *            <code>nProcesses - 1</code>. Used to pick the CPUs when
+	 *            affinity is enabled.
+	 * @return the budget.
+	 */
+	public static ThreadBudget forProcess( final int numThreads, final int nProcesses, final int index )
+	{
+		if ( nProcesses <= 1 || !CellposePreferences.useThreadBudget() )
+			return NONE;
+
+		final int nThreads = Math.max( 1, numThreads / nProcesses );
+		if ( !CellposePreferences.useAffinity() || taskset() == null )
+			return new ThreadBudget( nThreads, null );
+
+		final int nCpus = Runtime.getRuntime().availableProcessors();
+		final int[] cpus = new int[ nThreads ];
+		for ( int i = 0; i < nThreads; i++ )
+			cpus[ i ] = ( index * nThreads + i ) % nCpus;
+		return new ThreadBudget( nThreads, cpus );
+	}
+
+	/**
+	 * Returns the number of threads of this budget, or 0 if there is no limit.
+	 *
+	 * @return the number of threads.
+	 */
+	public int getNumThreads()
+	{
+		return nThreads;
+	}
+
+	/**
+	 * Sets the thread limits in the environment of a process to start.
+	 *
+	 * @param pb
+	 *            the process builder.
+	 */
+	public void applyTo( final ProcessBuilder pb )
+	{
+		if ( nThreads <= 0 )
+			return;
+		final Map< String, String > env = pb.environment();
+		for ( final String variable : THREAD_VARIABLES )
+			env.put( variable, Integer.toString( nThreads ) );
+	}
+
+	/**
+	 * Prefixes a command so that the process is pinned to the CPUs of this
+	 * budget, if affinity is enabled.
+	 *
+	 * @param cmd
+	 *            the command.
+	 * @return a new command, or the same command if there is nothing to do.
+	 */
+	public List< String > wrap( final List< String > cmd )
+	{
+		if ( cpus == null )
+			return cmd;
+		final List< String > wrapped = new ArrayList<>( cmd.size() + 3 );
+		wrapped.add( taskset() );
+		wrapped.add( "-c" );
+		wrapped.add( cpuList() );
+		wrapped.addAll( cmd );
+		return wrapped;
+	}
+
+	@Override
+	public String toString()
+	{
+		if ( nThreads <= 0 )
+			return "no thread limit";
+		final String str = String.format( Locale.US, "%d thread(s)", nThreads );
+		return ( cpus == null ) ? str : str + " on CPUs " + cpuList();
+	}
+
+	private String cpuList()
+	{
+		final StringBuilder str = new StringBuilder();
+		for ( int i = 0; i < cpus.length; i++ )
+		{
+			if ( i > 0 )
+				str.append( ',' );
+			str.append( cpus[ i ] );
+		}
+		return str.toString();
+	}
+
+	private static String taskset()
+	{
+		if ( !System.getProperty( "os.name" ).toLowerCase( Locale.ROOT ).contains( "linux" ) )
+			return null;
+		for ( final String path : TASKSET_PATHS )
+			if ( new File( path ).canExecute() )
+				return path;
+		return null;
+	}
+}
@@ -0,0 +1,511 @@
+package fiji.plugin.trackmate.cellpose;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Writes single frames of an image to uncompressed TIFF files, for cellpose.
+ * <p>
+ * Pixels are streamed from the source image into a {@link FileChannel},
+ * without wrapping the frame in an {@link ij.ImagePlus} first. When the source
+ * image is backed by primitive arrays ({@link ArrayImg} or {@link PlanarImg},
+ * which is what images opened in ImageJ are) and of a type TIFF supports
+ * natively, rows are copied in bulk from the arrays. Other images are read
+ * with a random access and converted to 32-bit float, like
+ * <code>ImageJFunctions.wrap()</code> does.
+ * <p>
+ * The files are little-endian, one strip per plane, one plane per channel,
+ * with an ImageJ description so that they read like the hyperstacks saved by
+ * ImageJ. They are written either through a reused copy buffer, or directly
+ * through a memory-mapped buffer. Instances are not thread-safe.
+ * <p>
+ * Optionally, sources with more than 8 or 16 bits per sample can be quantized
+ * to 8 or 16 bits. Each plane is then rescaled on its own, from its 1st and
+ * 99th percentiles, which is what cellpose does with its inputs anyway. A
+ * margin of half the percentile range is kept on both sides, so that the
+ * normalization cellpose computes from the quantized plane is the same, and
+ * only the extreme outliers are clipped.
+ */
+class TiffWriter< T extends RealType< T > & NativeType< T > >
+{
+
+	private static final short TYPE_SHORT = 3;
+
+	private static final short TYPE_LONG = 4;
+
+	private static final short TYPE_ASCII = 2;
+
+	/**
+	 * How many pixels of a plane are sorted to find its percentiles.
+	 */
+	private static final int MAX_PERCENTILE_SAMPLES = 1 << 16;
+
+	private final ImgPlus< T > img;
+
+	private final int cIndex;
+
+	private final int tIndex;
+
+	private final int bytesPerSample;
+
+	private final boolean isFloat;
+
+	private final int outBytesPerSample;
+
+	private final boolean outFloat;
+
+	private final boolean quantize;
+
+	private float[] values;
+
+	private float[] sample;
+
+	/**
+	 * The source as an array image, or <code>null</code>.
+	 */
+	private final ArrayImg< T, ? > arrayImg;
+
+	/**
+	 * The source as a planar image, or <code>null</code>.
+	 */
+	private final PlanarImg< T, ? > planarImg;
+
+	private final boolean mapped;
+
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates a writer for the specified image.
+	 *
+	 * @param img
+	 *            the source image.
+	 * @param mapped
+	 *            if <code>true</code>, files are written through a
+	 *            memory-mapped buffer instead of a copy buffer. This saves a
+	 *            copy when writing to a RAM-backed file system.
+	 * @param quantizeBits
+	 *            8 or 16 to quantize sources with more bits per sample to
+	 *            that many bits, 0 to write the source type as it is.
+	 */
+	TiffWriter( final ImgPlus< T > img, final boolean mapped, final int quantizeBits )
+	{
+		this.img = img;
+		this.mapped = mapped;
+		this.cIndex = img.dimensionIndex( Axes.CHANNEL );
+		this.tIndex = img.dimensionIndex( Axes.TIME );
+
+		final T type = img.firstElement();
+		final boolean nativeType;
+		if ( type instanceof UnsignedByteType )
+		{
+			bytesPerSample = 1;
+			isFloat = false;
+			nativeType = true;
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			bytesPerSample = 2;
+			isFloat = false;
+			nativeType = true;
+		}
+		else
+		{
+			bytesPerSample = 4;
+			isFloat = true;
+			nativeType = type instanceof FloatType;
+		}
+
+		// Bulk copies only if the ImgPlus axes map 1:1 to the backing image.
+		final Img< T > src = img.getImg();
+		final boolean sameShape = nativeType && sameShape( src, img );
+		this.arrayImg = ( sameShape && src instanceof ArrayImg ) ? ( ArrayImg< T, ? > ) src : null;
+		this.planarImg = ( sameShape && src instanceof PlanarImg ) ? ( PlanarImg< T, ? > ) src : null;
+
+		this.quantize = ( quantizeBits == 8 || quantizeBits == 16 ) && quantizeBits < 8 * bytesPerSample;
+		this.outBytesPerSample = quantize ? quantizeBits / 8 : bytesPerSample;
+		this.outFloat = !quantize && isFloat;
+	}
+
+	/**
+	 * Returns <code>true</code> if the planes written are quantized.
+	 *
+	 * @return whether the planes are quantized.
+	 */
+	boolean isQuantized()
+	{
+		return quantize;
+	}
+
+	/**
+	 * Returns <code>true</code> if pixels are copied in bulk from arrays.
+	 *
+	 * @return whether bulk copies are used.
+	 */
+	boolean isBulk()
+	{
+		return arrayImg != null || planarImg != null;
+	}
+
+	/**
+	 * Writes one frame of the source image, cropped in X and Y, with the
+	 * specified channels.
+	 *
+	 * @param xy
+	 *            the crop interval. Only the first two dimensions are used.
+	 * @param channels
+	 *            the 0-based indices of the channels to write, in order, or
+	 *            <code>null</code> to write all the channels. Ignored if the
+	 *            image has no channel axis.
+	 * @param t
+	 *            the frame to write. Ignored if the image has no time axis.
+	 * @param file
+	 *            the file to write.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	long write( final Interval xy, final int[] channels, final long t, final Path file ) throws IOException
+	{
+		final int width = ( int ) xy.dimension( 0 );
+		final int height = ( int ) xy.dimension( 1 );
+		final int nPlanes = ( cIndex < 0 ) ? 1 : ( channels == null ) ? ( int ) img.dimension( cIndex ) : channels.length;
+		final long planeBytes = ( long ) width * height * outBytesPerSample;
+		if ( planeBytes > Integer.MAX_VALUE )
+			throw new IOException( "Frame too large to be written: " + width + " x " + height );
+
+		/*
+		 * Layout: header, description, planes, IFDs.
+		 */
+
+		final StringBuilder str = new StringBuilder( "ImageJ=1.54f\n" );
+		if ( nPlanes > 1 )
+			str.append( "images=" + nPlanes + "\nchannels=" + nPlanes + "\nhyperstack=true\nmode=grayscale\n" );
+		final byte[] description = ( str.toString() + '\0' ).getBytes( StandardCharsets.US_ASCII );
+		final long dataOffset = align( 8 + description.length );
+		final long ifdOffset = align( dataOffset + nPlanes * planeBytes );
+		final int nEntries = outFloat ? 11 : 10;
+		final long ifdSize = align( 2 + 12 * ( nEntries + 1 ) + 4 );
+
+		final ByteBuffer header = ByteBuffer.allocate( ( int ) dataOffset ).order( ByteOrder.LITTLE_ENDIAN );
+		header.put( ( byte ) 'I' ).put( ( byte ) 'I' ).putShort( ( short ) 42 ).putInt( ( int ) ifdOffset );
+		header.put( description );
+		header.position( header.capacity() );
+		header.flip();
+
+		final ByteBuffer ifds = ByteBuffer.allocate( ( int ) ( nPlanes * ifdSize ) ).order( ByteOrder.LITTLE_ENDIAN );
+		for ( int c = 0; c < nPlanes; c++ )
+		{
+			final long start = ifdOffset + c * ifdSize;
+			final boolean first = ( c == 0 );
+			ifds.position( ( int ) ( c * ifdSize ) );
+			ifds.putShort( ( short ) ( first ? nEntries + 1 : nEntries ) );
+			entry( ifds, 254, TYPE_LONG, 1, 0 );
+			entry( ifds, 256, TYPE_LONG, 1, width );
+			entry( ifds, 257, TYPE_LONG, 1, height );
+			entry( ifds, 258, TYPE_SHORT, 1, 8 * outBytesPerSample );
+			entry( ifds, 259, TYPE_SHORT, 1, 1 );
+			entry( ifds, 262, TYPE_SHORT, 1, 1 );
+			if ( first )
+				entry( ifds, 270, TYPE_ASCII, description.length, 8 );
+			entry( ifds, 273, TYPE_LONG, 1, dataOffset + c * planeBytes );
+			entry( ifds, 277, TYPE_SHORT, 1, 1 );
+			entry( ifds, 278, TYPE_LONG, 1, height );
+			entry( ifds, 279, TYPE_LONG, 1, planeBytes );
+			if ( outFloat )
+				entry( ifds, 339, TYPE_SHORT, 1, 3 );
+			ifds.putInt( ( c == nPlanes - 1 ) ? 0 : ( int ) ( start + ifdSize ) );
+		}
+		ifds.position( ifds.capacity() );
+		ifds.flip();
+
+		final long size = ifdOffset + ifds.remaining();
+		if ( mapped && size <= Integer.MAX_VALUE )
+		{
+			try (FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+			{
+				final MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+				try
+				{
+					map.order( ByteOrder.LITTLE_ENDIAN );
+					map.put( header );
+					map.position( ( int ) dataOffset );
+					for ( int c = 0; c < nPlanes; c++ )
+						fillPlane( map, xy, channel( channels, c ), t );
+					map.position( ( int ) ifdOffset );
+					map.put( ifds );
+				}
+				finally
+				{
+					ScratchSpace.unmap( map );
+				}
+				return size;
+			}
+		}
+
+		try (FileChannel channel = FileChannel.open( file,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ))
+		{
+			writeFully( channel, header );
+
+			final ByteBuffer plane = buffer( ( int ) planeBytes );
+			for ( int c = 0; c < nPlanes; c++ )
+			{
+				plane.clear();
+				fillPlane( plane, xy, channel( channels, c ), t );
+				plane.flip();
+				writeFully( channel, plane );
+			}
+
+			channel.position( ifdOffset );
+			writeFully( channel, ifds );
+			return channel.size();
+		}
+	}
+
+	private void fillPlane( final ByteBuffer out, final Interval xy, final int c, final long t )
+	{
+		final long[] pos = new long[ img.numDimensions() ];
+		if ( cIndex >= 0 )
+			pos[ cIndex ] = c;
+		if ( tIndex >= 0 )
+			pos[ tIndex ] = t;
+
+		final int width = ( int ) xy.dimension( 0 );
+		final long minX = xy.min( 0 );
+		final long minY = xy.min( 1 );
+		final long maxY = xy.max( 1 );
+
+		if ( quantize )
+		{
+			fillQuantized( out, xy, pos );
+			return;
+		}
+
+		if ( isBulk() )
+		{
+			final long rowLength = img.dimension( 0 );
+			final Object data;
+			final long planeStart;
+			if ( arrayImg != null )
+			{
+				data = ( ( ArrayDataAccess< ? > ) arrayImg.update( null ) ).getCurrentStorageArray();
+				long offset = 0;
+				long stride = rowLength * img.dimension( 1 );
+				for ( int d = 2; d < pos.length; d++ )
+				{
+					offset += pos[ d ] * stride;
+					stride *= img.dimension( d );
+				}
+				planeStart = offset;
+			}
+			else
+			{
+				int no = 0;
+				int stride = 1;
+				for ( int d = 2; d < pos.length; d++ )
+				{
+					no += ( int ) pos[ d ] * stride;
+					stride *= ( int ) img.dimension( d );
+				}
+				data = ( ( ArrayDataAccess< ? > ) planarImg.getPlane( no ) ).getCurrentStorageArray();
+				planeStart = 0;
+			}
+
+			if ( data instanceof byte[] )
+			{
+				final byte[] array = ( byte[] ) data;
+				for ( long y = minY; y <= maxY; y++ )
+					out.put( array, ( int ) ( planeStart + y * rowLength + minX ), width );
+			}
+			else if ( data instanceof short[] )
+			{
+				final short[] array = ( short[] ) data;
+				final ShortBuffer sb = out.asShortBuffer();
+				for ( long y = minY; y <= maxY; y++ )
+					sb.put( array, ( int ) ( planeStart + y * rowLength + minX ), width );
+				out.position( out.position() + 2 * sb.position() );
+			}
+			else
+			{
+				final float[] array = ( float[] ) data;
+				final FloatBuffer fb = out.asFloatBuffer();
+				for ( long y = minY; y <= maxY; y++ )
+					fb.put( array, ( int ) ( planeStart + y * rowLength + minX ), width );
+				out.position( out.position() + 4 * fb.position() );
+			}
+			return;
+		}
+
+		/*
+		 * Generic path.
+		 */
+
+		final RandomAccess< T > ra = img.randomAccess();
+		ra.setPosition( pos );
+		for ( long y = minY; y <= maxY; y++ )
+		{
+			ra.setPosition( y, 1 );
+			ra.setPosition( minX, 0 );
+			for ( int x = 0; x < width; x++ )
+			{
+				final T p = ra.get();
+				if ( bytesPerSample == 1 )
+					out.put( ( byte ) ( ( UnsignedByteType ) p ).get() );
+				else if ( bytesPerSample == 2 )
+					out.putShort( ( short ) ( ( UnsignedShortType ) p ).get() );
+				else
+					out.putFloat( p.getRealFloat() );
+				ra.fwd( 0 );
+			}
+		}
+	}
+
+	private void fillQuantized( final ByteBuffer out, final Interval xy, final long[] pos )
+	{
+		final int width = ( int ) xy.dimension( 0 );
+		final int height = ( int ) xy.dimension( 1 );
+		final int n = width * height;
+		if ( values == null || values.length < n )
+			values = new float[ n ];
+
+		// Read the plane and its range.
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		final RandomAccess< T > ra = img.randomAccess();
+		ra.setPosition( pos );
+		int i = 0;
+		for ( long y = xy.min( 1 ); y <= xy.max( 1 ); y++ )
+		{
+			ra.setPosition( y, 1 );
+			ra.setPosition( xy.min( 0 ), 0 );
+			for ( int x = 0; x < width; x++ )
+			{
+				final float v = ra.get().getRealFloat();
+				values[ i++ ] = v;
+				if ( v < min )
+					min = v;
+				if ( v > max )
+					max = v;
+				ra.fwd( 0 );
+			}
+		}
+
+		// 1st and 99th percentiles, from a regular sample of the plane.
+		float lo = 0f;
+		float hi = 0f;
+		if ( min <= max )
+		{
+			final int step = Math.max( 1, n / MAX_PERCENTILE_SAMPLES );
+			final int nSamples = Math.min( n, MAX_PERCENTILE_SAMPLES + 1 );
+			if ( sample == null || sample.length < nSamples )
+				sample = new float[ nSamples ];
+			int count = 0;
+			for ( int j = 0; j < n && count < nSamples; j += step )
+				if ( values[ j ] == values[ j ] )
+					sample[ count++ ] = values[ j ];
+			Arrays.sort( sample, 0, count );
+			final float p1 = sample[ ( int ) Math.floor( 0.01 * ( count - 1 ) ) ];
+			final float p99 = sample[ ( int ) Math.ceil( 0.99 * ( count - 1 ) ) ];
+			final float margin = 0.5f * ( p99 - p1 );
+			lo = Math.max( min, p1 - margin );
+			hi = Math.min( max, p99 + margin );
+		}
+
+		// Rescale, round and clip.
+		final int maxValue = ( outBytesPerSample == 1 ) ? 0xff : 0xffff;
+		final float scale = ( hi > lo ) ? maxValue / ( hi - lo ) : 0f;
+		if ( outBytesPerSample == 1 )
+		{
+			for ( int j = 0; j < n; j++ )
+				out.put( ( byte ) quantize( values[ j ], lo, scale, maxValue ) );
+		}
+		else
+		{
+			for ( int j = 0; j < n; j++ )
+				out.putShort( ( short ) quantize( values[ j ], lo, scale, maxValue ) );
+		}
+	}
+
+	private static int quantize( final float v, final float lo, final float scale, final int maxValue )
+	{
+		if ( v != v )
+			return 0;
+		final int q = Math.round( ( v - lo ) * scale );
+		return ( q < 0 ) ? 0 : ( q > maxValue ) ? maxValue : q;
+	}
+
+	private static int channel( final int[] channels, final int c )
+	{
+		return ( channels == null ) ? c : channels[ c ];
+	}
+
+	private static void entry( final ByteBuffer bb, final int tag, final short type, final long count, final long value )
+	{
+		bb.putShort( ( short ) tag );
+		bb.putShort( type );
+		bb.putInt( ( int ) count );
+		if ( type == TYPE_SHORT && count == 1 )
+		{
+			bb.putShort( ( short ) value );
+			bb.putShort( ( short ) 0 );
+		}
+		else
+		{
+			bb.putInt( ( int ) value );
+		}
+	}
+
+	private ByteBuffer buffer( final int capacity )
+	{
+		if ( buffer == null || buffer.capacity() < capacity )
+			buffer = ByteBuffer.allocateDirect( capacity ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.clear();
+		buffer.limit( capacity );
+		return buffer;
+	}
+
+	private static void writeFully( final FileChannel channel, final ByteBuffer bb ) throws IOException
+	{
+		while ( bb.hasRemaining() )
+			channel.write( bb );
+	}
+
+	private static long align( final long offset )
+	{
+		return ( offset + 7 ) & ~7l;
+	}
+
+	private static boolean sameShape( final Img< ? > src, final ImgPlus< ? > img )
+	{
+		if ( src.numDimensions() != img.numDimensions() )
+			return false;
+		for ( int d = 0; d < img.numDimensions(); d++ )
+			if ( src.dimension( d ) != img.dimension( d ) || src.min( d ) != 0 || img.min( d ) != 0 )
+				return false;
+		return true;
+	}
+}
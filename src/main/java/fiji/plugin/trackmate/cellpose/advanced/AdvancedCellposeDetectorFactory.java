@@ -47,6 +47,7 @@ import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.cellpose.CellposeDetector;
 import fiji.plugin.trackmate.cellpose.CellposeDetectorFactory;
 import fiji.plugin.trackmate.cellpose.CellposeSettings.PretrainedModelCellpose;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
@@ -162,6 +163,11 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 				.diameter( diameter )
 				.useGPU( useGPU )
 				.simplifyContours( simplifyContours )
+				.simplificationMethod( ( SimplificationMethod ) settings.getOrDefault( KEY_SIMPLIFICATION_METHOD, DEFAULT_SIMPLIFICATION_METHOD ) )
+				.simplificationTolerance( ( ( Number ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE ) ).doubleValue() / calibration[ 0 ] )
+				.maxVertices( ( Integer ) settings.getOrDefault( KEY_MAX_VERTICES, DEFAULT_MAX_VERTICES ) )
+				.minArea( ( ( Number ) settings.getOrDefault( KEY_MIN_AREA, DEFAULT_MIN_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
+				.maxArea( ( ( Number ) settings.getOrDefault( KEY_MAX_AREA, DEFAULT_MAX_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
 				.flowThreshold( flowThreshold )
 				.cellProbThreshold( cellProbThreshold )
 				.get();
@@ -199,6 +205,7 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readOptionalSettings( element, settings, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_FLOW_THRESHOLD, errorHolder );
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_PROB_THRESHOLD, errorHolder );
 
@@ -242,6 +249,7 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkOptionalSettings( settings, errorHolder );
 		ok = ok & checkParameter( settings, KEY_FLOW_THRESHOLD, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_CELL_PROB_THRESHOLD, Double.class, errorHolder );
 
@@ -265,6 +273,11 @@ public class AdvancedCellposeDetectorFactory< T extends RealType< T > & NativeTy
 		final List< String > optionalKeys = Arrays.asList(
 				KEY_CELLPOSE_CUSTOM_MODEL_FILEPATH,
 				KEY_LOGGER,
+				KEY_SIMPLIFICATION_METHOD,
+				KEY_SIMPLIFICATION_TOLERANCE,
+				KEY_MAX_VERTICES,
+				KEY_MIN_AREA,
+				KEY_MAX_AREA,
 				KEY_FLOW_THRESHOLD,
 				KEY_CELL_PROB_THRESHOLD );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
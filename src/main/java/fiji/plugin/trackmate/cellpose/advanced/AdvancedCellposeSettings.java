@@ -1,6 +1,8 @@
 package fiji.plugin.trackmate.cellpose.advanced;
 
 import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.cellpose.MaskFormat;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -24,15 +26,37 @@ public class AdvancedCellposeSettings extends CellposeSettings
 			double flowThreshold,
 			double cellProbThreshold )
 	{
-		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
+		this( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				SimplificationMethod.DOUGLAS_PEUCKER, 0., 0, 0., 0., flowThreshold, cellProbThreshold );
+	}
+
+	public AdvancedCellposeSettings(
+			String cellposePythonPath,
+			PretrainedModelCellpose model,
+			String customModelPath,
+			int chan,
+			int chan2,
+			double diameter,
+			boolean useGPU,
+			boolean simplifyContours,
+			SimplificationMethod simplificationMethod,
+			double simplificationTolerance,
+			int maxVertices,
+			double minArea,
+			double maxArea,
+			double flowThreshold,
+			double cellProbThreshold )
+	{
+		super( cellposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				simplificationMethod, simplificationTolerance, maxVertices, minArea, maxArea );
 		this.flowThreshold = flowThreshold;
 		this.cellProbThreshold = cellProbThreshold;
 	}
 
 	@Override
-	public List< String > toCmdLine( String imagesDir )
+	public List< String > toCmdLine( String imagesDir, int chan, int chan2, MaskFormat maskFormat )
 	{
-		List< String > cmd = new ArrayList<>(super.toCmdLine( imagesDir ));
+		List< String > cmd = new ArrayList<>(super.toCmdLine( imagesDir, chan, chan2, maskFormat ));
 		cmd.add( "--flow_threshold" );
 		cmd.add( String.valueOf( flowThreshold ) );
 		cmd.add( "--cellprob_threshold" );
@@ -106,6 +130,36 @@ public class AdvancedCellposeSettings extends CellposeSettings
 			return this;
 		}
 
+		public Builder simplificationMethod( final SimplificationMethod simplificationMethod )
+		{
+			super.simplificationMethod( simplificationMethod );
+			return this;
+		}
+
+		public Builder simplificationTolerance( final double simplificationTolerance )
+		{
+			super.simplificationTolerance( simplificationTolerance );
+			return this;
+		}
+
+		public Builder maxVertices( final int maxVertices )
+		{
+			super.maxVertices( maxVertices );
+			return this;
+		}
+
+		public Builder minArea( final double minArea )
+		{
+			super.minArea( minArea );
+			return this;
+		}
+
+		public Builder maxArea( final double maxArea )
+		{
+			super.maxArea( maxArea );
+			return this;
+		}
+
 		public Builder customModel( final String customModelPath )
 		{
 			super.customModel( customModelPath );
@@ -124,6 +178,11 @@ public class AdvancedCellposeSettings extends CellposeSettings
 					diameter,
 					useGPU,
 					simplifyContours,
+					simplificationMethod,
+					simplificationTolerance,
+					maxVertices,
+					minArea,
+					maxArea,
 					flowThreshold,
 					cellProbThreshold );
 		}
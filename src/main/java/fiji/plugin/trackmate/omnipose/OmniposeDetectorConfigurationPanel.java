@@ -81,6 +81,7 @@ public class OmniposeDetectorConfigurationPanel extends CellposeDetectorConfigur
 		ftfDiameter.setValue( settings.get( KEY_CELL_DIAMETER ) );
 		chckbxUseGPU.setSelected( ( boolean ) settings.get( KEY_USE_GPU ) );
 		chckbxSimplify.setSelected( ( boolean ) settings.get( KEY_SIMPLIFY_CONTOURS ) );
+		storeOptionalSettings( settings );
 	}
 
 	@Override
@@ -99,6 +100,7 @@ public class OmniposeDetectorConfigurationPanel extends CellposeDetectorConfigur
 		settings.put( KEY_CELL_DIAMETER, diameter );
 		settings.put( KEY_SIMPLIFY_CONTOURS, chckbxSimplify.isSelected() );
 		settings.put( KEY_USE_GPU, chckbxUseGPU.isSelected() );
+		settings.putAll( optionalSettings );
 
 		settings.put( KEY_LOGGER, logger );
 
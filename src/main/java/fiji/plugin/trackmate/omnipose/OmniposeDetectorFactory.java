@@ -46,6 +46,7 @@ import fiji.plugin.trackmate.Model;
 import fiji.plugin.trackmate.Settings;
 import fiji.plugin.trackmate.cellpose.CellposeDetector;
 import fiji.plugin.trackmate.cellpose.CellposeDetectorFactory;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
 import fiji.plugin.trackmate.detection.SpotDetectorFactory;
 import fiji.plugin.trackmate.detection.SpotDetectorFactoryBase;
 import fiji.plugin.trackmate.detection.SpotGlobalDetector;
@@ -151,6 +152,11 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				.diameter( diameter )
 				.useGPU( useGPU )
 				.simplifyContours( simplifyContours )
+				.simplificationMethod( ( SimplificationMethod ) settings.getOrDefault( KEY_SIMPLIFICATION_METHOD, DEFAULT_SIMPLIFICATION_METHOD ) )
+				.simplificationTolerance( ( ( Number ) settings.getOrDefault( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE ) ).doubleValue() / calibration[ 0 ] )
+				.maxVertices( ( Integer ) settings.getOrDefault( KEY_MAX_VERTICES, DEFAULT_MAX_VERTICES ) )
+				.minArea( ( ( Number ) settings.getOrDefault( KEY_MIN_AREA, DEFAULT_MIN_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
+				.maxArea( ( ( Number ) settings.getOrDefault( KEY_MAX_AREA, DEFAULT_MAX_AREA ) ).doubleValue() / ( calibration[ 0 ] * calibration[ 1 ] ) )
 				.get();
 
 		// Logger.
@@ -175,6 +181,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && writeAttribute( settings, element, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok && writeAttribute( settings, element, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok && writeOptionalSettings( settings, element, errorHolder );
 
 		final PretrainedModelOmnipose model = ( PretrainedModelOmnipose ) settings.get( KEY_OMNIPOSE_MODEL );
 		element.setAttribute( KEY_OMNIPOSE_MODEL, model.name() );
@@ -198,6 +205,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok && readDoubleAttribute( element, settings, KEY_CELL_DIAMETER, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_USE_GPU, errorHolder );
 		ok = ok && readBooleanAttribute( element, settings, KEY_SIMPLIFY_CONTOURS, errorHolder );
+		ok = ok && readOptionalSettings( element, settings, errorHolder );
 
 		// Read model.
 		final String str = element.getAttributeValue( KEY_OMNIPOSE_MODEL );
@@ -228,6 +236,11 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		settings.put( KEY_CELL_DIAMETER, 3 );
 		settings.put( KEY_USE_GPU, DEFAULT_USE_GPU );
 		settings.put( KEY_SIMPLIFY_CONTOURS, true );
+		settings.put( KEY_SIMPLIFICATION_METHOD, DEFAULT_SIMPLIFICATION_METHOD );
+		settings.put( KEY_SIMPLIFICATION_TOLERANCE, DEFAULT_SIMPLIFICATION_TOLERANCE );
+		settings.put( KEY_MAX_VERTICES, DEFAULT_MAX_VERTICES );
+		settings.put( KEY_MIN_AREA, DEFAULT_MIN_AREA );
+		settings.put( KEY_MAX_AREA, DEFAULT_MAX_AREA );
 		settings.put( KEY_LOGGER, Logger.DEFAULT_LOGGER );
 		settings.put( KEY_OMNIPOSE_CUSTOM_MODEL_FILEPATH, DEFAULT_OMNIPOSE_CUSTOM_MODEL_FILEPATH );
 		return settings;
@@ -246,6 +259,7 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 		ok = ok & checkParameter( settings, KEY_CELL_DIAMETER, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_USE_GPU, Boolean.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_SIMPLIFY_CONTOURS, Boolean.class, errorHolder );
+		ok = ok & checkOptionalSettings( settings, errorHolder );
 
 		// If we have a logger, test it is of the right class.
 		final Object loggerObj = settings.get( KEY_LOGGER );
@@ -266,7 +280,12 @@ public class OmniposeDetectorFactory< T extends RealType< T > & NativeType< T >
 				KEY_SIMPLIFY_CONTOURS );
 		final List< String > optionalKeys = Arrays.asList(
 				KEY_OMNIPOSE_CUSTOM_MODEL_FILEPATH,
-				KEY_LOGGER );
+				KEY_LOGGER,
+				KEY_SIMPLIFICATION_METHOD,
+				KEY_SIMPLIFICATION_TOLERANCE,
+				KEY_MAX_VERTICES,
+				KEY_MIN_AREA,
+				KEY_MAX_AREA );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 		if ( !ok )
 			errorMessage = errorHolder.toString();
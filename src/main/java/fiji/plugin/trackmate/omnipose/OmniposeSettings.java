@@ -26,6 +26,8 @@ import java.util.Collections;
 import java.util.List;
 
 import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.MaskFormat;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
 
 public class OmniposeSettings extends AbstractCellposeSettings
 {
@@ -43,10 +45,29 @@ public class OmniposeSettings extends AbstractCellposeSettings
 		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
 	}
 
+	public OmniposeSettings(
+			final String omniposePythonPath,
+			final PretrainedModelOmnipose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final SimplificationMethod simplificationMethod,
+			final double simplificationTolerance,
+			final int maxVertices,
+			final double minArea,
+			final double maxArea )
+	{
+		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				simplificationMethod, simplificationTolerance, maxVertices, minArea, maxArea );
+	}
+
 	@Override
-	public List< String > toCmdLine( final String imagesDir )
+	public List< String > toCmdLine( final String imagesDir, final int chan, final int chan2, final MaskFormat maskFormat )
 	{
-		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir ) );
+		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir, chan, chan2, maskFormat ) );
 		// omnipose executable adds it anyway, but let's make sure.
 		cmd.add( "--omni" );
 		return Collections.unmodifiableList( cmd );
@@ -80,6 +101,16 @@ public class OmniposeSettings extends AbstractCellposeSettings
 		
 		protected boolean simplifyContours = true;
 
+		protected SimplificationMethod simplificationMethod = SimplificationMethod.DOUGLAS_PEUCKER;
+
+		protected double simplificationTolerance = 0.;
+
+		protected int maxVertices = 0;
+
+		protected double minArea = 0.;
+
+		protected double maxArea = 0.;
+
 		protected String customModelPath = "";
 
 		public Builder channel1( final int ch )
@@ -124,6 +155,36 @@ public class OmniposeSettings extends AbstractCellposeSettings
 			return this;
 		}
 
+		public Builder simplificationMethod( final SimplificationMethod simplificationMethod )
+		{
+			this.simplificationMethod = simplificationMethod;
+			return this;
+		}
+
+		public Builder simplificationTolerance( final double simplificationTolerance )
+		{
+			this.simplificationTolerance = simplificationTolerance;
+			return this;
+		}
+
+		public Builder maxVertices( final int maxVertices )
+		{
+			this.maxVertices = maxVertices;
+			return this;
+		}
+
+		public Builder minArea( final double minArea )
+		{
+			this.minArea = minArea;
+			return this;
+		}
+
+		public Builder maxArea( final double maxArea )
+		{
+			this.maxArea = maxArea;
+			return this;
+		}
+
 		public Builder customModel( final String customModelPath )
 		{
 			this.customModelPath = customModelPath;
@@ -140,7 +201,12 @@ public class OmniposeSettings extends AbstractCellposeSettings
 					chan2,
 					diameter,
 					useGPU,
-					simplifyContours );
+					simplifyContours,
+					simplificationMethod,
+					simplificationTolerance,
+					maxVertices,
+					minArea,
+					maxArea );
 		}
 
 	}
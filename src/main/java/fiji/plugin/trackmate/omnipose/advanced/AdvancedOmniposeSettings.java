@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import fiji.plugin.trackmate.cellpose.MaskFormat;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
 import fiji.plugin.trackmate.omnipose.OmniposeSettings;
 
 public class AdvancedOmniposeSettings extends OmniposeSettings
@@ -24,15 +26,37 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 			final double flowThreshold,
 			final double cellProbThreshold )
 	{
-		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours );
+		this( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				SimplificationMethod.DOUGLAS_PEUCKER, 0., 0, 0., 0., flowThreshold, cellProbThreshold );
+	}
+
+	public AdvancedOmniposeSettings(
+			final String omniposePythonPath,
+			final PretrainedModelOmnipose model,
+			final String customModelPath,
+			final int chan,
+			final int chan2,
+			final double diameter,
+			final boolean useGPU,
+			final boolean simplifyContours,
+			final SimplificationMethod simplificationMethod,
+			final double simplificationTolerance,
+			final int maxVertices,
+			final double minArea,
+			final double maxArea,
+			final double flowThreshold,
+			final double cellProbThreshold )
+	{
+		super( omniposePythonPath, model, customModelPath, chan, chan2, diameter, useGPU, simplifyContours,
+				simplificationMethod, simplificationTolerance, maxVertices, minArea, maxArea );
 		this.flowThreshold = flowThreshold;
 		this.cellProbThreshold = cellProbThreshold;
 	}
 
 	@Override
-	public List< String > toCmdLine( final String imagesDir )
+	public List< String > toCmdLine( final String imagesDir, final int chan, final int chan2, final MaskFormat maskFormat )
 	{
-		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir ) );
+		final List< String > cmd = new ArrayList<>( super.toCmdLine( imagesDir, chan, chan2, maskFormat ) );
 		cmd.add( "--flow_threshold" );
 		cmd.add( String.valueOf( flowThreshold ) );
 		/*
@@ -117,6 +141,41 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 			return this;
 		}
 
+		@Override
+		public Builder simplificationMethod( final SimplificationMethod simplificationMethod )
+		{
+			super.simplificationMethod( simplificationMethod );
+			return this;
+		}
+
+		@Override
+		public Builder simplificationTolerance( final double simplificationTolerance )
+		{
+			super.simplificationTolerance( simplificationTolerance );
+			return this;
+		}
+
+		@Override
+		public Builder maxVertices( final int maxVertices )
+		{
+			super.maxVertices( maxVertices );
+			return this;
+		}
+
+		@Override
+		public Builder minArea( final double minArea )
+		{
+			super.minArea( minArea );
+			return this;
+		}
+
+		@Override
+		public Builder maxArea( final double maxArea )
+		{
+			super.maxArea( maxArea );
+			return this;
+		}
+
 		@Override
 		public Builder customModel( final String customModelPath )
 		{
@@ -136,6 +195,11 @@ public class AdvancedOmniposeSettings extends OmniposeSettings
 					diameter,
 					useGPU,
 					simplifyContours,
+					simplificationMethod,
+					simplificationTolerance,
+					maxVertices,
+					minArea,
+					maxArea,
 					flowThreshold,
 					cellProbThreshold );
 		}
@@ -0,0 +1,160 @@
+"""
+Persistent cellpose / omnipose worker for TrackMate-Cellpose.
+
+The worker imports cellpose once and keeps the models it loaded in memory, so
+that successive detections do not pay for the interpreter, PyTorch and model
+weights startup again. It talks to TrackMate with a line-based protocol:
+
+    stdin                                stdout
+    PING                                 PONG
+    RUN<TAB>arg<TAB>arg...               DONE  or  ERROR<TAB>message
+    QUIT                                 (exits)
+
+The RUN arguments are the cellpose command-line arguments generated by
+TrackMate (--dir, --chan, --pretrained_model, ...). Masks are written next to
+the input images with the same names as the cellpose command line would use.
+On top of --save_png and --save_tif, the worker understands --save_npy, which
+saves the masks as raw uncompressed NumPy arrays. Other arguments are
+rejected with an ERROR, so that TrackMate uses the command line instead.
+Everything that is not part of the protocol is sent to stderr.
+
+Usage: python trackmate_cellpose_worker.py [cellpose|omnipose]
+"""
+import argparse
+import glob
+import os
+import sys
+import traceback
+
+# Keep the real stdout for the protocol, send library prints to stderr.
+PROTOCOL = sys.stdout
+sys.stdout = sys.stderr
+
+BACKEND = sys.argv[1] if len(sys.argv) > 1 else 'cellpose'
+if BACKEND == 'omnipose':
+    from cellpose_omni import models, io
+else:
+    from cellpose import models, io
+
+import numpy as np
+
+# Honour the thread budget TrackMate gives to each concurrent worker.
+if os.environ.get('OMP_NUM_THREADS'):
+    try:
+        import torch
+        torch.set_num_threads(int(os.environ['OMP_NUM_THREADS']))
+    except Exception:
+        pass
+
+try:
+    io.logger_setup()
+except Exception:
+    pass
+
+PARSER = argparse.ArgumentParser(add_help=False)
+PARSER.add_argument('--dir', default='')
+PARSER.add_argument('--chan', type=int, default=0)
+PARSER.add_argument('--chan2', type=int, default=0)
+PARSER.add_argument('--use_gpu', action='store_true')
+PARSER.add_argument('--diameter', type=float, default=0.)
+PARSER.add_argument('--pretrained_model', default='cyto')
+PARSER.add_argument('--flow_threshold', type=float, default=None)
+PARSER.add_argument('--cellprob_threshold', type=float, default=None)
+PARSER.add_argument('--mask_threshold', type=float, default=None)
+PARSER.add_argument('--omni', action='store_true')
+PARSER.add_argument('--save_png', action='store_true')
+PARSER.add_argument('--save_tif', action='store_true')
+PARSER.add_argument('--save_npy', action='store_true')
+# The worker never saves _seg.npy files.
+PARSER.add_argument('--no_npy', action='store_true')
+
+MODELS = {}
+
+
+def reply(*items):
+    PROTOCOL.write('\t'.join(items) + '\n')
+    PROTOCOL.flush()
+
+
+def get_model(name, gpu, diameter):
+    builtin = not os.path.isfile(name)
+    # Automatic diameter estimation requires the size model.
+    with_size = builtin and diameter <= 0
+    key = (name, gpu, with_size)
+    if key not in MODELS:
+        if with_size:
+            MODELS[key] = models.Cellpose(gpu=gpu, model_type=name)
+        elif builtin:
+            MODELS[key] = models.CellposeModel(gpu=gpu, model_type=name)
+        else:
+            MODELS[key] = models.CellposeModel(gpu=gpu, pretrained_model=name)
+    return MODELS[key]
+
+
+def save_masks(masks, base, opts):
+    masks = np.asarray(masks)
+    dtype = np.uint16 if masks.max() < 2 ** 16 else np.uint32
+    if opts.save_npy:
+        path = base + '_cp_masks.npy'
+        tmp = base + '_cp_masks.tmp.npy'
+        np.save(tmp, np.ascontiguousarray(masks, dtype=dtype))
+    elif opts.save_tif or dtype == np.uint32:
+        path = base + '_cp_masks.tif'
+        tmp = base + '_cp_masks.tmp.tif'
+        io.imsave(tmp, masks.astype(dtype))
+    else:
+        path = base + '_cp_masks.png'
+        tmp = base + '_cp_masks.tmp.png'
+        io.imsave(tmp, masks.astype(dtype))
+    # Atomic rename so that the masks are never read half-written.
+    os.replace(tmp, path)
+
+
+def run(args):
+    opts, unknown = PARSER.parse_known_args(args)
+    if unknown:
+        # The command line would use them: fail, so that TrackMate falls back
+        # to it, rather than give different masks.
+        raise ValueError('Unsupported arguments: ' + ' '.join(unknown))
+    model = get_model(opts.pretrained_model, opts.use_gpu, opts.diameter)
+    kwargs = dict(channels=[opts.chan, opts.chan2],
+                  diameter=opts.diameter if opts.diameter > 0 else None)
+    if opts.flow_threshold is not None:
+        kwargs['flow_threshold'] = opts.flow_threshold
+    if opts.cellprob_threshold is not None:
+        kwargs['cellprob_threshold'] = opts.cellprob_threshold
+    if opts.mask_threshold is not None:
+        kwargs['mask_threshold'] = opts.mask_threshold
+    if opts.omni:
+        kwargs['omni'] = True
+
+    files = sorted(glob.glob(os.path.join(opts.dir, '*.tif')))
+    files = [f for f in files if '_cp_masks' not in f]
+    for f in files:
+        img = io.imread(f)
+        out = model.eval(img, **kwargs)
+        save_masks(out[0], os.path.splitext(f)[0], opts)
+
+
+def main():
+    reply('READY')
+    for line in sys.stdin:
+        items = line.rstrip('\r\n').split('\t')
+        command = items[0]
+        if command == 'PING':
+            reply('PONG')
+        elif command == 'QUIT':
+            break
+        elif command == 'RUN':
+            try:
+                run(items[1:])
+                reply('DONE')
+            except Exception as e:
+                traceback.print_exc()
+                reply('ERROR', str(e).replace('\t', ' ').replace('\n', ' '))
+        elif command:
+            reply('ERROR', 'Unknown command: ' + command)
+
+
+if __name__ == '__main__':
+    main()
@@ -0,0 +1,73 @@
+package fiji.plugin.trackmate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Scanner;
+
+import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.CellposeDetector;
+import fiji.plugin.trackmate.cellpose.CellposePreferences;
+import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+
+/**
+ * Checks how fast a detection is canceled, using a stub cellpose executable
+ * that never ends and starts a grandchild process, like conda and launcher
+ * wrappers do. Unix only.
+ */
+public class CellposeCancelLatencyDemo
+{
+
+	private static final String MARKER = "sleep 7391";
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		final File stub = File.createTempFile( "cellpose-stub", ".sh" );
+		stub.deleteOnExit();
+		Files.write( stub.toPath(), ( "#!/bin/sh\n" + MARKER + " &\n" + MARKER + "\n" ).getBytes( StandardCharsets.US_ASCII ) );
+		stub.setExecutable( true );
+
+		final ImagePlus imp = IJ.createImage( "stub", "8-bit black", 64, 64, 1, 1, 20 );
+		final AbstractCellposeSettings cp = CellposeSettings.create()
+				.cellposePythonPath( stub.getAbsolutePath() )
+				.useGPU( false )
+				.get();
+		System.setProperty( CellposePreferences.CONCURRENCY, "2" );
+		final ImgPlus img = TMUtils.rawWraps( imp );
+		final CellposeDetector detector = new CellposeDetector( img, img, cp, Logger.VOID_LOGGER );
+		detector.setNumThreads( 2 );
+
+		final boolean[] result = new boolean[ 1 ];
+		final Thread runner = new Thread( () -> result[ 0 ] = detector.process() );
+		runner.start();
+		Thread.sleep( 3000 );
+		System.out.println( "Stub processes before cancel: " + countStubs() );
+
+		final long start = System.nanoTime();
+		detector.cancel( "Latency demo" );
+		runner.join( 30000 );
+		final double latency = ( System.nanoTime() - start ) / 1e6;
+
+		final int left = countStubs();
+		System.out.println( String.format( "process() returned %s after %.0f ms.", result[ 0 ], latency ) );
+		System.out.println( "Error message: " + detector.getErrorMessage() );
+		System.out.println( "Stub processes left after cancel: " + left );
+		System.out.println( ( !runner.isAlive() && !result[ 0 ] && left == 0 && latency < 5000 ) ? "PASS" : "FAIL" );
+		System.exit( 0 );
+	}
+
+	private static int countStubs() throws IOException
+	{
+		final Process ps = new ProcessBuilder( "sh", "-c", "ps -A -o args | grep '" + MARKER + "' | grep -v grep | wc -l" ).start();
+		try (Scanner scanner = new Scanner( ps.getInputStream() ))
+		{
+			return scanner.nextInt();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package fiji.plugin.trackmate;
+
+import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.CellposeDetector;
+import fiji.plugin.trackmate.cellpose.CellposePreferences;
+import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.util.TMUtils;
+import ij.IJ;
+import ij.ImagePlus;
+import net.imagej.ImgPlus;
+
+/**
+ * Compares the throughput of concurrent cellpose processes on the CPU, with
+ * and without a thread budget per process.
+ */
+public class CellposeThreadBudgetBenchmark
+{
+
+	@SuppressWarnings( { "rawtypes", "unchecked" } )
+	public static void main( final String[] args )
+	{
+		final ImagePlus imp = IJ.openImage( "samples/P31-crop-2.tif" );
+		final int nFrames = imp.getNFrames();
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final AbstractCellposeSettings cp = CellposeSettings.create()
+				.useGPU( false )
+				.get();
+		final ImgPlus img = TMUtils.rawWraps( imp );
+
+		final String[][] configs = new String[][] {
+				{ "No budget", "false", "false" },
+				{ "Thread budget", "true", "false" },
+				{ "Thread budget + affinity", "true", "true" } };
+		for ( final int concurrency : new int[] { 2, 4 } )
+		{
+			System.setProperty( CellposePreferences.CONCURRENCY, Integer.toString( concurrency ) );
+			for ( final String[] config : configs )
+			{
+				System.setProperty( CellposePreferences.THREAD_BUDGET, config[ 1 ] );
+				System.setProperty( CellposePreferences.AFFINITY, config[ 2 ] );
+
+				final CellposeDetector detector = new CellposeDetector( img, img, cp, Logger.VOID_LOGGER );
+				detector.setNumThreads( numThreads );
+				if ( !detector.checkInput() || !detector.process() )
+				{
+					System.err.println( detector.getErrorMessage() );
+					return;
+				}
+				final double seconds = detector.getProcessingTime() / 1000.;
+				System.out.println( String.format( "%d processes, %-26s %6.1f s, %6.3f frames/s.",
+						concurrency, config[ 0 ] + ":", seconds, nFrames / seconds ) );
+			}
+		}
+		System.exit( 0 );
+	}
+}
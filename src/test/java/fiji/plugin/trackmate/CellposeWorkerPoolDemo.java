@@ -0,0 +1,112 @@
+package fiji.plugin.trackmate;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.cellpose.CellposeWorkerPool;
+import fiji.plugin.trackmate.cellpose.ThreadBudget;
+
+/**
+ * Drives the persistent worker pool end to end with a stub Python worker that
+ * speaks the worker protocol without cellpose: PING / PONG, RUN / DONE, RUN /
+ * ERROR, and a worker that dies in the middle of a job. Requires
+ * <code>python3</code> on the path.
+ */
+public class CellposeWorkerPoolDemo
+{
+
+	private static final String STUB = String.join( "\n",
+			"import os, sys",
+			"out = sys.stdout",
+			"out.write('READY\\n'); out.flush()",
+			"for line in sys.stdin:",
+			"    items = line.rstrip('\\n').split('\\t')",
+			"    if items[0] == 'PING': out.write('PONG\\n')",
+			"    elif items[0] == 'QUIT': break",
+			"    elif items[0] == 'RUN':",
+			"        d = items[items.index('--dir') + 1]",
+			"        if d.endswith('crash'): os._exit(3)",
+			"        if d.endswith('fail'): out.write('ERROR\\tstub failure\\n')",
+			"        else:",
+			"            open(os.path.join(d, 'frame_0_cp_masks.npy'), 'w').write('stub')",
+			"            out.write('DONE\\n')",
+			"    out.flush()",
+			"" );
+
+	public static void main( final String[] args ) throws IOException, InterruptedException
+	{
+		final File stub = File.createTempFile( "cellpose-worker-stub", ".py" );
+		stub.deleteOnExit();
+		Files.write( stub.toPath(), STUB.getBytes( StandardCharsets.US_ASCII ) );
+
+		final AbstractCellposeSettings settings = CellposeSettings.create()
+				.cellposePythonPath( "python3" )
+				.useGPU( false )
+				.get();
+		final CellposeWorkerPool pool = new CellposeWorkerPool(
+				s -> Arrays.asList( "python3", stub.getAbsolutePath() ), 60000l, 10000l );
+		boolean pass = true;
+
+		/*
+		 * RUN / DONE, then reuse of the same worker after a ping.
+		 */
+
+		final File dir = Files.createTempDirectory( "TrackMate-worker-demo" ).toFile();
+		dir.deleteOnExit();
+		long start = System.nanoTime();
+		final CellposeWorkerPool.Worker first = pool.acquire( settings, ThreadBudget.NONE );
+		final double startTime = ( System.nanoTime() - start ) / 1e6;
+		String error = first.run( CellposeWorkerPool.toWorkerArgs( settings.toCmdLine( dir.getAbsolutePath() ) ) );
+		final File mask = new File( dir, "frame_0_cp_masks.npy" );
+		mask.deleteOnExit();
+		pass &= check( "RUN -> DONE", error == null && mask.isFile(), "error: " + error );
+		pool.release( first );
+
+		start = System.nanoTime();
+		final CellposeWorkerPool.Worker second = pool.acquire( settings, ThreadBudget.NONE );
+		final double reuseTime = ( System.nanoTime() - start ) / 1e6;
+		pass &= check( "PING -> PONG, worker reused", second == first,
+				String.format( "start %.0f ms, reuse %.0f ms", startTime, reuseTime ) );
+
+		/*
+		 * RUN / ERROR: the worker reports the failure and stays alive.
+		 */
+
+		error = second.run( Arrays.asList( "--dir", new File( dir, "fail" ).getAbsolutePath() ) );
+		pass &= check( "RUN -> ERROR", "stub failure".equals( error ) && second.isAlive(), "error: " + error );
+
+		/*
+		 * The worker dies in the middle of a job.
+		 */
+
+		error = second.run( Arrays.asList( "--dir", new File( dir, "crash" ).getAbsolutePath() ) );
+		pass &= check( "Worker crash", error != null && exited( second ), "error: " + error );
+		pool.release( second );
+
+		final CellposeWorkerPool.Worker third = pool.acquire( settings, ThreadBudget.NONE );
+		pass &= check( "New worker after crash", third != second && third.isAlive(), "" );
+		pool.discard( third );
+		pass &= check( "Discarded worker killed", exited( third ), "" );
+
+		pool.shutdown();
+		System.out.println( pass ? "PASS" : "FAIL" );
+		System.exit( pass ? 0 : 1 );
+	}
+
+	private static boolean exited( final CellposeWorkerPool.Worker worker ) throws InterruptedException
+	{
+		return worker.getProcess().waitFor( 2, TimeUnit.SECONDS );
+	}
+
+	private static boolean check( final String what, final boolean ok, final String details )
+	{
+		System.out.println( String.format( "%-32s %s %s", what, ok ? "ok  " : "FAIL", details ) );
+		return ok;
+	}
+}
@@ -0,0 +1,111 @@
+package fiji.plugin.trackmate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.cellpose.AbstractCellposeSettings;
+import fiji.plugin.trackmate.cellpose.CellposeSettings;
+import fiji.plugin.trackmate.cellpose.ConcurrencyTuner;
+
+/**
+ * Drives the concurrency tuner with simulated command-line processes: each
+ * batch of frames starts a process that pays a startup time before
+ * segmenting its frames, and the machine saturates at 2 concurrent
+ * processes. Checks that a trial at level L starts L processes, and that the
+ * tuner picks 2 despite the startup times.
+ */
+public class ConcurrencyTunerDemo
+{
+
+	private static final long STARTUP_MS = 300;
+
+	private static final long FRAME_MS = 40;
+
+	private static final int SATURATION = 2;
+
+	public static void main( final String[] args ) throws IOException
+	{
+		// Keep the tuned level out of the real home folder.
+		System.setProperty( "user.home", Files.createTempDirectory( "TrackMate-tuner-demo" ).toString() );
+
+		final AbstractCellposeSettings settings = CellposeSettings.create()
+				.cellposePythonPath( "python3" )
+				.useGPU( false )
+				.get();
+		final ConcurrencyTuner tuner = new ConcurrencyTuner( settings, 4, "256x256x1", Logger.DEFAULT_LOGGER );
+		final Map< Integer, Integer > spawned = new TreeMap<>();
+
+		final int level = tuner.tune( 40, ( from, to, l, batchSize ) -> {
+			final ConcurrentLinkedQueue< Integer > batches = new ConcurrentLinkedQueue<>();
+			for ( int start = from; start < to; start += batchSize )
+				batches.add( Math.min( batchSize, to - start ) );
+			final AtomicInteger nProcesses = new AtomicInteger();
+			final List< Thread > threads = new ArrayList<>();
+			for ( int i = 0; i < l; i++ )
+			{
+				final Thread thread = new Thread( () -> {
+					Integer batch;
+					while ( ( batch = batches.poll() ) != null )
+					{
+						// One process per batch, like the command line.
+						nProcesses.incrementAndGet();
+						sleep( STARTUP_MS );
+						for ( int f = 0; f < batch; f++ )
+						{
+							sleep( ( long ) ( FRAME_MS * Math.max( 1., ( double ) l / SATURATION ) ) );
+							tuner.maskProduced();
+						}
+					}
+				} );
+				threads.add( thread );
+				thread.start();
+			}
+			for ( final Thread thread : threads )
+			{
+				try
+				{
+					thread.join();
+				}
+				catch ( final InterruptedException e )
+				{
+					return false;
+				}
+			}
+			spawned.put( l, nProcesses.get() );
+			return true;
+		} );
+
+		boolean pass = true;
+		for ( final Map.Entry< Integer, Integer > trial : spawned.entrySet() )
+			pass &= check( "Level " + trial.getKey() + " starts " + trial.getKey() + " process(es)",
+					trial.getValue().intValue() == trial.getKey().intValue(), trial.getValue() + " started" );
+		pass &= check( "Tuned level", level == SATURATION, "picked " + level );
+		pass &= check( "Trials went fine", tuner.isOk(), tuner.getFramesUsed() + " frames used" );
+		System.out.println( pass ? "PASS" : "FAIL" );
+		System.exit( pass ? 0 : 1 );
+	}
+
+	private static void sleep( final long millis )
+	{
+		try
+		{
+			Thread.sleep( millis );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static boolean check( final String what, final boolean ok, final String details )
+	{
+		System.out.println( String.format( "%-32s %s %s", what, ok ? "ok  " : "FAIL", details ) );
+		return ok;
+	}
+}
@@ -0,0 +1,133 @@
+package fiji.plugin.trackmate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.cellpose.LabelToSpotConverter;
+import fiji.plugin.trackmate.cellpose.SimplificationMethod;
+
+/**
+ * Compares the contour simplification methods of the label converter in
+ * number of vertices, time and area change, on synthetic masks the size of a
+ * 92-frame 1024x502 movie. Frames are converted in parallel.
+ */
+public class ContourSimplificationBenchmark
+{
+
+	private static final int WIDTH = 1024;
+
+	private static final int HEIGHT = 502;
+
+	private static final int N_FRAMES = 92;
+
+	private static final int N_CELLS = 300;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final List< int[] > masks = createMasks();
+		final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+
+		final Object[][] configs = new Object[][] {
+				{ "None", null, 0., 0 },
+				{ "Douglas-Peucker, 1 px", SimplificationMethod.DOUGLAS_PEUCKER, 1., 0 },
+				{ "Douglas-Peucker, 2 px", SimplificationMethod.DOUGLAS_PEUCKER, 2., 0 },
+				{ "Visvalingam-Whyatt, 1 px", SimplificationMethod.VISVALINGAM_WHYATT, 1., 0 },
+				{ "Visvalingam-Whyatt, 2 px", SimplificationMethod.VISVALINGAM_WHYATT, 2., 0 },
+				{ "Douglas-Peucker, max 12", SimplificationMethod.DOUGLAS_PEUCKER, 1., 12 },
+				{ "Visvalingam-Whyatt, max 12", SimplificationMethod.VISVALINGAM_WHYATT, 1., 12 } };
+
+		List< List< Spot > > reference = null;
+		for ( int run = 0; run < 3; run++ )
+		{
+			System.out.println( "Run " + ( run + 1 ) );
+			for ( final Object[] config : configs )
+			{
+				final SimplificationMethod method = ( SimplificationMethod ) config[ 1 ];
+				final double tolerance = ( Double ) config[ 2 ];
+				final int maxVertices = ( Integer ) config[ 3 ];
+
+				final long start = System.nanoTime();
+				final ThreadLocal< LabelToSpotConverter > converters = ThreadLocal.withInitial(
+						() -> new LabelToSpotConverter( new double[] { 1., 1. }, 0l, 0l, 1., method, tolerance, maxVertices ) );
+				final List< Future< List< Spot > > > futures = new ArrayList<>();
+				for ( int t = 0; t < N_FRAMES; t++ )
+				{
+					final int[] mask = masks.get( t );
+					final long frame = t;
+					futures.add( executor.submit( () -> converters.get().convert( mask, WIDTH, HEIGHT, frame ) ) );
+				}
+				final List< List< Spot > > spots = new ArrayList<>( N_FRAMES );
+				for ( final Future< List< Spot > > future : futures )
+					spots.add( future.get() );
+				final double time = ( System.nanoTime() - start ) / 1e9;
+				if ( method == null )
+					reference = spots;
+
+				long nSpots = 0;
+				long nVertices = 0;
+				double areaChange = 0.;
+				for ( int t = 0; t < N_FRAMES; t++ )
+				{
+					final List< Spot > frameSpots = spots.get( t );
+					final List< Spot > referenceSpots = reference.get( t );
+					for ( int i = 0; i < frameSpots.size(); i++ )
+					{
+						final SpotRoi roi = frameSpots.get( i ).getRoi();
+						final double referenceArea = area( referenceSpots.get( i ).getRoi() );
+						nSpots++;
+						nVertices += roi.x.length;
+						areaChange += Math.abs( area( roi ) - referenceArea ) / referenceArea;
+					}
+				}
+				System.out.println( String.format( " - %-28s %6.3f s, %d spots, %8d vertices, %5.1f per spot, mean area change %5.2f%%.",
+						config[ 0 ], time, nSpots, nVertices, ( double ) nVertices / nSpots, 100. * areaChange / nSpots ) );
+			}
+		}
+		executor.shutdown();
+		System.exit( 0 );
+	}
+
+	private static double area( final SpotRoi roi )
+	{
+		double a = 0.;
+		final int n = roi.x.length;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int j = ( i + 1 ) % n;
+			a += roi.x[ i ] * roi.y[ j ] - roi.x[ j ] * roi.y[ i ];
+		}
+		return Math.abs( a ) / 2.;
+	}
+
+	/**
+	 * Random non-overlapping disks, like cellpose masks.
+	 */
+	private static List< int[] > createMasks()
+	{
+		final Random random = new Random( 1l );
+		final List< int[] > masks = new ArrayList<>();
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			final int[] mask = new int[ WIDTH * HEIGHT ];
+			int label = 1;
+			for ( int c = 0; c < N_CELLS; c++ )
+			{
+				final int r = 5 + random.nextInt( 15 );
+				final int cx = r + random.nextInt( WIDTH - 2 * r );
+				final int cy = r + random.nextInt( HEIGHT - 2 * r );
+				for ( int y = cy - r; y <= cy + r; y++ )
+					for ( int x = cx - r; x <= cx + r; x++ )
+						if ( ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) <= r * r && mask[ x + y * WIDTH ] == 0 )
+							mask[ x + y * WIDTH ] = label;
+				label++;
+			}
+			masks.add( mask );
+		}
+		return masks;
+	}
+}
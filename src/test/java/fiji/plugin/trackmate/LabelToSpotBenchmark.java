@@ -0,0 +1,132 @@
+package fiji.plugin.trackmate;
+
+import static fiji.plugin.trackmate.detection.DetectorKeys.DEFAULT_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.detection.DetectorKeys.KEY_TARGET_CHANNEL;
+import static fiji.plugin.trackmate.detection.ThresholdDetectorFactory.KEY_SIMPLIFY_CONTOURS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.cellpose.LabelToSpotConverter;
+import fiji.plugin.trackmate.detection.LabelImageDetectorFactory;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+/**
+ * Compares the conversion of cellpose masks to spots with a nested TrackMate
+ * detection on the mask hyperstack, as it was done before, and with the label
+ * converter of the cellpose package, on synthetic masks the size of a
+ * 92-frame 1024x502 movie.
+ */
+public class LabelToSpotBenchmark
+{
+
+	private static final int WIDTH = 1024;
+
+	private static final int HEIGHT = 502;
+
+	private static final int N_FRAMES = 92;
+
+	private static final int N_CELLS = 300;
+
+	public static void main( final String[] args ) throws Exception
+	{
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final boolean simplify = true;
+		final List< int[] > masks = createMasks();
+
+		for ( int run = 0; run < 3; run++ )
+		{
+			/*
+			 * Nested TrackMate detection on a hyperstack.
+			 */
+
+			long start = System.nanoTime();
+			final ImageStack stack = new ImageStack( WIDTH, HEIGHT );
+			for ( final int[] mask : masks )
+			{
+				final short[] pixels = new short[ mask.length ];
+				for ( int i = 0; i < mask.length; i++ )
+					pixels[ i ] = ( short ) mask[ i ];
+				stack.addSlice( "", pixels );
+			}
+			final ImagePlus imp = new ImagePlus( "masks", stack );
+			imp.setDimensions( 1, 1, N_FRAMES );
+			imp.setOpenAsHyperStack( true );
+
+			final Settings settings = new Settings( imp );
+			final LabelImageDetectorFactory< ? > factory = new LabelImageDetectorFactory<>();
+			final Map< String, Object > detectorSettings = factory.getDefaultSettings();
+			detectorSettings.put( KEY_TARGET_CHANNEL, DEFAULT_TARGET_CHANNEL );
+			detectorSettings.put( KEY_SIMPLIFY_CONTOURS, simplify );
+			settings.detectorFactory = factory;
+			settings.detectorSettings = detectorSettings;
+			final TrackMate trackmate = new TrackMate( settings );
+			trackmate.setNumThreads( numThreads );
+			if ( !trackmate.execDetection() )
+			{
+				System.err.println( trackmate.getErrorMessage() );
+				return;
+			}
+			final int nNested = trackmate.getModel().getSpots().getNSpots( false );
+			final double nestedTime = ( System.nanoTime() - start ) / 1e9;
+
+			/*
+			 * Label converter, frames in parallel.
+			 */
+
+			start = System.nanoTime();
+			final ThreadLocal< LabelToSpotConverter > converters = ThreadLocal.withInitial(
+					() -> new LabelToSpotConverter( new double[] { 1., 1. }, 0l, 0l, 1., simplify ) );
+			final ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+			final List< Future< List< Spot > > > futures = new ArrayList<>();
+			for ( int t = 0; t < N_FRAMES; t++ )
+			{
+				final int[] mask = masks.get( t );
+				final long frame = t;
+				futures.add( executor.submit( () -> converters.get().convert( mask, WIDTH, HEIGHT, frame ) ) );
+			}
+			int nConverted = 0;
+			for ( final Future< List< Spot > > future : futures )
+				nConverted += future.get().size();
+			executor.shutdown();
+			final double convertedTime = ( System.nanoTime() - start ) / 1e9;
+
+			System.out.println( String.format( "Run %d - nested TrackMate: %6.2f s, %d spots. Label converter: %6.2f s, %d spots. Speedup: %.1fx.",
+					run + 1, nestedTime, nNested, convertedTime, nConverted, nestedTime / convertedTime ) );
+		}
+		System.exit( 0 );
+	}
+
+	/**
+	 * Random non-overlapping disks, like cellpose masks.
+	 */
+	private static List< int[] > createMasks()
+	{
+		final Random random = new Random( 1l );
+		final List< int[] > masks = new ArrayList<>();
+		for ( int t = 0; t < N_FRAMES; t++ )
+		{
+			final int[] mask = new int[ WIDTH * HEIGHT ];
+			int label = 1;
+			for ( int c = 0; c < N_CELLS; c++ )
+			{
+				final int r = 5 + random.nextInt( 15 );
+				final int cx = r + random.nextInt( WIDTH - 2 * r );
+				final int cy = r + random.nextInt( HEIGHT - 2 * r );
+				for ( int y = cy - r; y <= cy + r; y++ )
+					for ( int x = cx - r; x <= cx + r; x++ )
+						if ( ( x - cx ) * ( x - cx ) + ( y - cy ) * ( y - cy ) <= r * r && mask[ x + y * WIDTH ] == 0 )
+							mask[ x + y * WIDTH ] = label;
+				label++;
+			}
+			masks.add( mask );
+		}
+		return masks;
+	}
+}